@@ -0,0 +1,109 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+
+/// One active watch, warning or advisory, holding only what the notification shows.
+public final class Alert {
+    private final @NonNull String mId;
+    private final @NonNull String mVersion;
+    private final @NonNull String mEvent;
+    private final int mSeverityRank;
+    private final @Nullable OffsetDateTime mEnds;
+
+    private Alert(
+            @NonNull String id,
+            @NonNull String version,
+            @NonNull String event,
+            int severityRank,
+            @Nullable OffsetDateTime ends) {
+        mId = id;
+        mVersion = version;
+        mEvent = event;
+        mSeverityRank = severityRank;
+        mEnds = ends;
+    }
+
+    /// The alert's ID, or null if the GeoJSON feature doesn't have one.
+    public static @Nullable String getId(@NonNull JSONObject feature) {
+        JSONObject properties = feature.optJSONObject("properties");
+        String id = properties != null ? properties.optString("id", "") : "";
+        return id.isEmpty() ? feature.optString("id", null) : id;
+    }
+
+    /// What identifies one revision of an alert: the NWS updates an alert in place by re-sending
+    /// it with a new "sent" time.
+    public static @NonNull String getVersion(@NonNull JSONObject feature) {
+        JSONObject properties = feature.optJSONObject("properties");
+        return properties != null ? properties.optString("sent", "") : "";
+    }
+
+    public static @NonNull Alert fromFeature(@NonNull JSONObject feature) throws JSONException {
+        final String id = getId(feature);
+        if (id == null) {
+            throw new JSONException("Alert has no ID");
+        }
+
+        JSONObject properties = feature.getJSONObject("properties");
+        return new Alert(
+                id,
+                getVersion(feature),
+                properties.getString("event"),
+                rankSeverity(properties.optString("severity")),
+                parseTime(properties.optString("ends", properties.optString("expires"))));
+    }
+
+    private static int rankSeverity(@NonNull String severity) {
+        switch (severity) {
+            case "Extreme":
+                return 4;
+            case "Severe":
+                return 3;
+            case "Moderate":
+                return 2;
+            case "Minor":
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static @Nullable OffsetDateTime parseTime(@NonNull String time) {
+        if (time.isEmpty() || time.equals("null")) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(time);
+        } catch (DateTimeParseException ignored) {
+            return null;
+        }
+    }
+
+    public @NonNull String getId() {
+        return mId;
+    }
+
+    public @NonNull String getVersion() {
+        return mVersion;
+    }
+
+    /// The kind of alert, e.g. "Flood Warning".
+    public @NonNull String getEvent() {
+        return mEvent;
+    }
+
+    /// Higher is more severe; 0 if unknown.
+    public int getSeverityRank() {
+        return mSeverityRank;
+    }
+
+    public boolean hasEnded(@NonNull OffsetDateTime now) {
+        return mEnds != null && !mEnds.isAfter(now);
+    }
+}
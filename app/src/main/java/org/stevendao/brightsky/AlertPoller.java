@@ -0,0 +1,193 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/// Polls the active watches and warnings for the displayed forecast's location, much more often
+/// than the forecast itself is refreshed. Each poll is a conditional request, so when nothing has
+/// changed it costs a bodiless 304; when something has, only the alerts with new IDs or new
+/// revisions are parsed. Polls run on the {@link PollScheduler}'s timer, which charges them to the
+/// {@link FetchGovernor} along with the observation poll. Everything runs on the main thread and
+/// stops whenever the service does.
+public final class AlertPoller implements PollScheduler.Poller {
+    public interface Listener {
+        /// Called on the main thread with the active alerts, most severe first, whenever the set
+        /// changes.
+        void onAlertsChanged(@NonNull List<Alert> alerts);
+    }
+
+    private static final String TAG = AlertPoller.class.getName();
+    private static final String URL_FORMAT =
+            "https://api.weather.gov/alerts/active?point=%.4f,%.4f";
+
+    private final @NonNull Context mContext;
+    private final @NonNull Listener mListener;
+
+    /// Active alerts by ID.
+    private final @NonNull Map<String, Alert> mAlerts = new HashMap<>();
+    private @Nullable String mUrl = null;
+    private @Nullable String mETag = null;
+    private @Nullable String mLastModified = null;
+    private @Nullable ConditionalJsonRequest mInFlight = null;
+    private boolean mRunning = false;
+
+    private long mPolls = 0;
+    private long mNotModified = 0;
+    private long mParsed = 0;
+
+    public AlertPoller(@NonNull Context context, @NonNull Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    public void start() {
+        mRunning = true;
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mInFlight != null) {
+            mInFlight.cancel();
+            mInFlight = null;
+        }
+    }
+
+    /// The active alerts, most severe first.
+    public @NonNull List<Alert> getAlerts() {
+        List<Alert> alerts = new ArrayList<>(mAlerts.values());
+        alerts.sort(Comparator.comparingInt(Alert::getSeverityRank).reversed());
+        return alerts;
+    }
+
+    @Override
+    public void poll() {
+        if (!mRunning) {
+            return;
+        }
+
+        final Forecast forecast = ForecastCache.getInstance().getLatest();
+        if (forecast == null) {
+            return;
+        }
+
+        // A different location has a different alert set; forget the validators so that the first
+        // poll there gets the full document.
+        final GeographicPoint point = forecast.getGeographicPoint();
+        final String url = String.format(
+                Locale.ROOT, URL_FORMAT, point.getLatitude(), point.getLongitude());
+        if (!url.equals(mUrl)) {
+            mUrl = url;
+            mETag = null;
+            mLastModified = null;
+            if (!mAlerts.isEmpty()) {
+                mAlerts.clear();
+                mListener.onAlertsChanged(getAlerts());
+            }
+        }
+
+        if (mInFlight != null) {
+            mInFlight.cancel();
+        }
+        mPolls++;
+        mInFlight = new ConditionalJsonRequest(
+                url, mETag, mLastModified, Metrics.Stage.ALERTS,
+                result -> onResponse(url, result),
+                error -> {
+                    Log.w(TAG, "Alerts request failed: " + error);
+                    mInFlight = null;
+                });
+        Utils.getRequestQueue(mContext).add(mInFlight);
+    }
+
+    private void onResponse(@NonNull String url, @NonNull ConditionalJsonRequest.Result result) {
+        mInFlight = null;
+        if (!mRunning || !url.equals(mUrl)) {
+            return;
+        }
+
+        mETag = result.getETag();
+        mLastModified = result.getLastModified();
+
+        boolean changed = removeEnded();
+        final JSONObject json = result.getJson();
+        if (json == null) {
+            mNotModified++;
+        }
+        else {
+            try {
+                changed |= merge(json.getJSONArray("features"));
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to parse alerts", e);
+                return;
+            }
+        }
+
+        if (changed) {
+            Log.d(TAG, mAlerts.size() + " active alerts");
+            mListener.onAlertsChanged(getAlerts());
+        }
+    }
+
+    /// Brings the alert set in line with the features in a full response, parsing only the ones
+    /// that are new or have been revised. Returns true if the set changed.
+    private boolean merge(@NonNull JSONArray features) {
+        final long start = Metrics.start();
+        boolean changed = false;
+        Set<String> seen = new LinkedHashSet<>();
+        for (int i = 0; i < features.length(); ++i) {
+            JSONObject feature = features.optJSONObject(i);
+            String id = feature != null ? Alert.getId(feature) : null;
+            if (id == null || !seen.add(id)) {
+                continue;
+            }
+
+            Alert existing = mAlerts.get(id);
+            if (existing != null && existing.getVersion().equals(Alert.getVersion(feature))) {
+                continue;
+            }
+
+            try {
+                mAlerts.put(id, Alert.fromFeature(feature));
+                mParsed++;
+                changed = true;
+            } catch (JSONException e) {
+                Log.w(TAG, "Skipping malformed alert " + id, e);
+            }
+        }
+
+        // Alerts that are no longer in the response were cancelled or have expired.
+        changed |= mAlerts.keySet().retainAll(seen);
+        Metrics.getInstance().record(Metrics.Stage.PARSE, start);
+        return changed;
+    }
+
+    /// Drops alerts whose end time has passed, which can happen between two 304s.
+    private boolean removeEnded() {
+        final OffsetDateTime now = OffsetDateTime.now(Utils.getClock());
+        return mAlerts.values().removeIf(alert -> alert.hasEnded(now));
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format(Locale.ROOT,
+                "Alerts: %d active; %d polls, %d not modified, %d alerts parsed",
+                mAlerts.size(), mPolls, mNotModified, mParsed));
+    }
+}
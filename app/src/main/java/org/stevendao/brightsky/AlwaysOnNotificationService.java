@@ -4,35 +4,35 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Icon;
 import android.location.Location;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.RemoteViews;
 
-import androidx.annotation.IdRes;
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.preference.PreferenceManager;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationCallback;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationResult;
-import com.google.android.gms.location.LocationServices;
-
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 
@@ -60,33 +60,41 @@ public class AlwaysOnNotificationService
     public static final int MESSAGE_INVALID_STATIC_LOCATION = 4;
 
     private static final String TAG = AlwaysOnNotificationService.class.getName();
-    private static final int LOCATION_INTERVAL_MINS = 15;
-    private static final int LOCATION_FASTEST_INTERVAL_MINS = 1;
-    private static final float LOCATION_SMALLEST_DISPLACEMENT_M = 1000f;
     private static final String CHANNEL_ID = "org.stevendao.brightsky.ALWAYS_ON_CHANNEL";
     private static final int NOTIFICATION_ID = 42; // Cannot be 0.
     private static final String FORECAST_EXTRAS_KEY = "forecast";
-    private static final String STATUS_EXTRAS_KEY = "status";
+    @VisibleForTesting
+    static final String STATUS_EXTRAS_KEY = "status";
 
     private Set<String> mOldPrefsKeys = Collections.emptySet();
 
     private final IBinder mBinder = new Binder();
 
-    private FusedLocationProviderClient mLocationProvider = null;
+    private LocationPipeline mLocationPipeline = null;
 
-    private final LocationCallback mLocationCallback = new LocationCallback() {
-        @Override
-        public void onLocationResult(LocationResult locationResult) {
-            Location loc =locationResult.getLastLocation();
-            if (loc != null) {
-                Log.d(TAG, "Location retrieval successful, updating cached location");
-                Utils.setCurrentLocation(AlwaysOnNotificationService.this, loc);
-            }
-            else {
-                Log.d(TAG, "Location retrieval unsuccessful");
-            }
-        }
-    };
+    private AlertPoller mAlertPoller = null;
+
+    private ObservationPoller mObservationPoller = null;
+    private PollScheduler mPollScheduler = null;
+
+    private @Nullable Forecast mForecast = null;
+
+    /// What the posted forecast notification shows, and the icon rendered for it. Only touched on
+    /// the main thread; render jobs get a snapshot.
+    private @Nullable NotificationViewModel mPostedModel = null;
+    private @Nullable Icon mIcon = null;
+
+    /// Forecast notifications are built on this thread. Every job takes the next generation, and a
+    /// job that's no longer the latest is dropped, at the latest right before it would be posted.
+    private ExecutorService mRenderExecutor = null;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mRenderGeneration = new AtomicLong();
+    private final AtomicLong mRendersPosted = new AtomicLong();
+    private final AtomicLong mRendersDropped = new AtomicLong();
+
+    /// Set in onDestroy. Messages and poller callbacks can still arrive after that, and render jobs
+    /// may still be running, so they check this before touching the executor or the notification.
+    private volatile boolean mDestroyed = false;
 
     @Override
     public void onCreate() {
@@ -104,12 +112,40 @@ public class AlwaysOnNotificationService
         sharedPreferences.registerOnSharedPreferenceChangeListener(this);
         mOldPrefsKeys = sharedPreferences.getAll().keySet();
 
+        mRenderExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Render");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         // Start periodic data updates and listen to location updates (if needed).
         Worker.startPeriodic(this);
 
-        mLocationProvider = LocationServices.getFusedLocationProviderClient(this);
+        mLocationPipeline =
+                new LocationPipeline(this, new Prefetcher(this), this::onGridpointChanged);
         updateLocationListener();
 
+        // Poll alerts for whatever location the forecast is showing; a change in the active
+        // alerts only re-posts the notification's text.
+        mAlertPoller = new AlertPoller(this, alerts -> {
+            if (mForecast != null) {
+                startNotification(mForecast);
+            }
+        });
+        mAlertPoller.start();
+
+        // Likewise, the measured temperature from the nearest station only changes the icon.
+        mObservationPoller = new ObservationPoller(this, observation -> {
+            if (mForecast != null) {
+                startNotification(mForecast);
+            }
+        });
+        mObservationPoller.start();
+
+        // Both poll on one timer, so that they share their radio wakeups.
+        mPollScheduler = new PollScheduler(this, mAlertPoller, mObservationPoller);
+        mPollScheduler.start();
+
         // Show the loading notification while we wait for data.
         startNotification("Loading weather forecast...");
     }
@@ -118,9 +154,34 @@ public class AlwaysOnNotificationService
     public void onDestroy() {
         Log.d(TAG, "Service onDestroy");
 
-        // Stop periodic data updates and stop location updates.
-        Worker.stopPeriodic(this);
-        mLocationProvider.removeLocationUpdates(mLocationCallback);
+        // Stop periodic data updates (unless home-screen widgets still need them) and stop
+        // location updates.
+        if (!TimelineWidgetProvider.hasWidgets(this)) {
+            Worker.stopPeriodic(this);
+        }
+        mLocationPipeline.stop();
+        mPollScheduler.stop();
+        mAlertPoller.stop();
+        mObservationPoller.stop();
+
+        // Drop anything still rendering or waiting to be posted.
+        mDestroyed = true;
+        mRenderGeneration.incrementAndGet();
+        mMainHandler.removeCallbacksAndMessages(null);
+        mRenderExecutor.shutdownNow();
+    }
+
+    /// The service keeps the process alive, so it's the one that hears about memory pressure.
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        CacheRegistry.getInstance().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        CacheRegistry.getInstance().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
     }
 
     @Override
@@ -130,15 +191,28 @@ public class AlwaysOnNotificationService
 
     @Override
     public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
-        @Message int message;
-        Forecast forecast;
-        if (intent == null) {
-            message = MESSAGE_START_SERVICE;
-            forecast = null;
-        }
-        else {
-            message = intent.getIntExtra(STATUS_EXTRAS_KEY, MESSAGE_START_SERVICE);
-            forecast = intent.getParcelableExtra(FORECAST_EXTRAS_KEY);
+        // Unparceling the forecast isn't free either, so the extras are read on the render thread.
+        // Since that thread runs one job at a time, messages are still handled in order.
+        mRenderExecutor.execute(() -> {
+            @Message int message;
+            Forecast forecast;
+            if (intent == null) {
+                message = MESSAGE_START_SERVICE;
+                forecast = null;
+            }
+            else {
+                message = intent.getIntExtra(STATUS_EXTRAS_KEY, MESSAGE_START_SERVICE);
+                forecast = intent.getParcelableExtra(FORECAST_EXTRAS_KEY);
+            }
+            mMainHandler.post(() -> handleMessage(message, forecast));
+        });
+
+        return START_STICKY;
+    }
+
+    private void handleMessage(@Message int message, @Nullable Forecast forecast) {
+        if (mDestroyed) {
+            return;
         }
 
         switch (message) {
@@ -152,92 +226,208 @@ public class AlwaysOnNotificationService
                 }
                 else {
                     startNotification("Something is broken");
+                    finishUserRefresh();
                 }
                 break;
             case MESSAGE_API_FAILURE:
-                startNotification("Forecast is currently unavailable");
+                // Keep showing the last good forecast (re-windowed to the current hour) while the
+                // worker revalidates in the background, as long as it isn't too old.
+                if (mForecast != null && Utils.getClock().millis()
+                        - mForecast.getFetchTimeMillis() <= Utils.getMaxStalenessMillis(this)) {
+                    Log.d(TAG, "Refresh failed, continuing to show last good forecast");
+                    startNotification(mForecast);
+                }
+                else {
+                    startNotification("Forecast is currently unavailable");
+                    finishUserRefresh();
+                }
                 break;
             case MESSAGE_NO_CURRENT_LOCATION:
                 startNotification("Getting current location...");
+                finishUserRefresh();
                 break;
             case MESSAGE_INVALID_STATIC_LOCATION:
                 startNotification("Invalid location specified");
+                finishUserRefresh();
                 break;
         }
+    }
 
-        return START_STICKY;
+    /// Ends the timing of a user-initiated refresh once its outcome is on screen. Forecasts finish
+    /// it when they're posted by the render path; text posts only do when they report an outcome,
+    /// not when they're placeholders like the loading text.
+    private static void finishUserRefresh() {
+        Metrics.getInstance().finish(Metrics.Stage.USER_REFRESH);
+    }
+
+    /// Stores a location that's outside the displayed forecast's gridpoint cell. If the device
+    /// moved into a cell that was prefetched, then the prefetched forecast is shown right away;
+    /// otherwise the new cell's forecast is fetched now instead of at the next periodic refresh.
+    private void onGridpointChanged(@NonNull Location location) {
+        Log.d(TAG, "Gridpoint changed, updating cached location");
+        Utils.setCurrentLocation(this, location);
+
+        // Without a forecast, there's nothing to switch from; fetch the first one for this
+        // location. (The preference listener only does that the first time a location is ever
+        // stored, and an expedited refresh already running would have read the old location.)
+        if (mForecast == null) {
+            Refresher.expedite(this);
+            return;
+        }
+
+        Forecast cached = Prefetcher.findCached(location);
+        if (cached != null) {
+            Log.d(TAG, "Crossed into prefetched gridpoint " +
+                    cached.getGeographicPoint().getCity());
+            startNotification(cached);
+        }
+        else {
+            Worker.doOnce(this);
+        }
     }
 
     public void startNotification(@NonNull Forecast forecast) {
-        RemoteViews bigContent = new RemoteViews(getPackageName(), R.layout.notification);
-        RemoteViews smallContent = new RemoteViews(getPackageName(), R.layout.notification_small);
-
-        String contentText;
-        final String desc = forecast.getDescription();
-        final String city = forecast.getGeographicPoint().getCity();
-        if (city == null || desc == null) {
-            contentText = "No information available.";
-        } else {
-            contentText = city + ": " + desc;
+        if (mDestroyed) {
+            return;
+        }
+
+        final boolean moved = mForecast == null
+                || mForecast.getGeographicPoint().getLatitude()
+                        != forecast.getGeographicPoint().getLatitude()
+                || mForecast.getGeographicPoint().getLongitude()
+                        != forecast.getGeographicPoint().getLongitude();
+        mForecast = forecast;
+        mLocationPipeline.setDisplayedCell(forecast.getCell());
+        ForecastCache.getInstance().setLatest(forecast);
+        ForecastContentProvider.notifyChanged(this, forecast);
+        if (moved) {
+            mPollScheduler.pollNow();
+        }
+
+        // Everything else happens on the render thread, from a snapshot of what it needs.
+        final List<Alert> alerts = mAlertPoller.getAlerts();
+        final Observation observation = mObservationPoller.getObservation();
+        final NotificationViewModel posted = mPostedModel;
+        final Icon postedIcon = mIcon;
+        final boolean nativeTimeline = Utils.getUseNativeTimeline(this);
+        final long generation = mRenderGeneration.incrementAndGet();
+        mRenderExecutor.execute(() -> render(
+                generation, forecast, alerts, observation, posted, postedIcon, nativeTimeline));
+    }
+
+    /// Builds the forecast notification on the render thread and posts it to the main thread,
+    /// unless a newer job has been started in the meantime.
+    private void render(
+            long generation,
+            @NonNull Forecast forecast,
+            @NonNull List<Alert> alerts,
+            @Nullable Observation observation,
+            @Nullable NotificationViewModel posted,
+            @Nullable Icon postedIcon,
+            boolean nativeTimeline) {
+        if (isSuperseded(generation)) {
+            return;
         }
-        bigContent.setTextViewText(R.id.descTextView, contentText);
 
         final List<ForecastPeriod> twentyFour = forecast.get24HourForecastPeriods();
-        final Icon icon = Utils.createIcon(twentyFour.get(0).getTemperature());
-
-        final int[] periods = {2, 6, 10, 14, 18, 22};
-        final @IdRes int[] tempViews =
-                {R.id.temp2, R.id.temp6, R.id.temp10, R.id.temp14, R.id.temp18, R.id.temp22};
-        final @IdRes int[] timeViews =
-                {R.id.time2, R.id.time6, R.id.time10, R.id.time14, R.id.time18, R.id.time22};
-        for (int i = 0; i < periods.length; ++i) {
-            ForecastPeriod fp = twentyFour.get(periods[i]);
-            bigContent.setTextViewText(
-                    tempViews[i],
-                    fp
-                            .getTemperature()
-                            .map(x -> String.format(Locale.ROOT, "\u00a0%d\u00b0", x))
-                            .orElse("--"));
-            bigContent.setTextViewText(
-                    timeViews[i],
-                    fp.getFormattedStartTime());
+        final NotificationViewModel model = new NotificationViewModel(
+                forecast, twentyFour, alerts, observation, Utils.getClock().millis());
+
+        // Nothing visible changed, so skip rendering and the Binder call altogether. (The service
+        // is already in the foreground, so startForeground doesn't need to be called again.) A
+        // user-initiated refresh is done once its forecast gets here, whether or not anything
+        // changed.
+        if (model.equals(posted)) {
+            Log.d(TAG, "Forecast notification unchanged, skipping update");
+            finishUserRefresh();
+            return;
         }
 
-        bigContent.setImageViewBitmap(
-                R.id.imageView,
-                Utils.createTimelineImage(
-                        this,
-                        forecast.getGeographicPoint(),
-                        twentyFour,
-                        1600,
-                        160,
-                        40));
-        smallContent.setImageViewBitmap(
-                R.id.imageView,
-                Utils.createTimelineImage(
-                        this,
-                        forecast.getGeographicPoint(),
-                        twentyFour,
-                        1600,
-                        160,
-                        0));
+        // Update the home-screen widgets in the same pass, from the same 24 periods.
+        TimelineWidgetProvider.updateAll(this, forecast, twentyFour, model);
+
+        // Only re-render the images whose inputs changed; the renderer reuses its cached timeline
+        // bitmaps when the fingerprint matches. (The native timeline is cheap to rebuild and
+        // doesn't have any large images to reuse.)
+        final Icon icon = posted == null || postedIcon == null
+                || !posted.getIconKey().equals(model.getIconKey())
+                ? Utils.createIcon(model.getIconTemperature())
+                : postedIcon;
+
+        RemoteViews bigContent = new RemoteViews(getPackageName(),
+                nativeTimeline ? R.layout.notification_native : R.layout.notification);
+        RemoteViews smallContent = new RemoteViews(getPackageName(),
+                nativeTimeline ? R.layout.notification_small_native : R.layout.notification_small);
+
+        model.applyText(bigContent);
+
+        if (nativeTimeline) {
+            NativeTimeline.apply(
+                    this, bigContent, forecast.getGeographicPoint(), twentyFour, true);
+            NativeTimeline.apply(
+                    this, smallContent, forecast.getGeographicPoint(), twentyFour, false);
+        }
+        else {
+            final TimelineRenderer renderer = TimelineRenderer.getInstance();
+            final long fingerprint = model.getTimelineFingerprint();
+            bigContent.setImageViewBitmap(R.id.imageView, renderer.render(
+                    this, forecast.getGeographicPoint(), twentyFour, fingerprint, 1600, 160, 40));
+            if (isSuperseded(generation)) {
+                return;
+            }
+            smallContent.setImageViewBitmap(R.id.imageView, renderer.render(
+                    this, forecast.getGeographicPoint(), twentyFour, fingerprint, 1600, 160, 0));
+        }
 
         Notification notification = new Notification.Builder(this, CHANNEL_ID)
-                .setContentTitle("Current conditions")
-                .setContentText(contentText)
+                .setContentTitle(model.getTitle())
+                .setContentText(model.getContentText())
+                .setSubText(model.getSubText())
                 .setOnlyAlertOnce(true)
                 .setSmallIcon(icon)
                 .setStyle(new Notification.DecoratedCustomViewStyle())
                 .setCustomContentView(smallContent)
                 .setCustomBigContentView(bigContent)
+                .setWhen(model.getWhen())
                 .setShowWhen(true)
                 .build();
 
-        startForeground(NOTIFICATION_ID, notification);
-        Log.d(TAG, "Updated foreground notification with forecast");
+        if (mDestroyed) {
+            return;
+        }
+        mMainHandler.post(() -> {
+            if (mDestroyed || isSuperseded(generation)) {
+                return;
+            }
+
+            final long start = Metrics.start();
+            startForeground(NOTIFICATION_ID, notification);
+            Metrics.getInstance().record(Metrics.Stage.START_FOREGROUND, start);
+            finishUserRefresh();
+            mPostedModel = model;
+            mIcon = icon;
+            mRendersPosted.incrementAndGet();
+            Log.d(TAG, "Updated foreground notification with forecast");
+        });
+    }
+
+    private boolean isSuperseded(long generation) {
+        if (generation != mRenderGeneration.get()) {
+            mRendersDropped.incrementAndGet();
+            return true;
+        }
+        return false;
     }
 
     public void startNotification(String contentText) {
+        if (mDestroyed) {
+            return;
+        }
+
+        // This replaces whatever forecast is still being rendered.
+        mRenderGeneration.incrementAndGet();
+        mPostedModel = null;
+
         Notification notification = new Notification.Builder(this, CHANNEL_ID)
                 .setContentTitle("Current conditions")
                 .setContentText(contentText)
@@ -247,10 +437,28 @@ public class AlwaysOnNotificationService
                 .setShowWhen(true)
                 .build();
 
+        final long start = Metrics.start();
         startForeground(NOTIFICATION_ID, notification);
+        Metrics.getInstance().record(Metrics.Stage.START_FOREGROUND, start);
         Log.d(TAG, "Updated foreground notification, contentText = " + contentText);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.getInstance().dump(writer);
+        FetchGovernor.getInstance(this).dump(writer);
+        RefreshPolicy.getInstance(this).dump(writer);
+        mPollScheduler.dump(writer);
+        mAlertPoller.dump(writer);
+        mObservationPoller.dump(writer);
+        mLocationPipeline.dump(writer);
+        FallbackForecastProvider.getDefault(this).dump(writer);
+        writer.println("Render: " + mRendersPosted.get() + " posted, "
+                + mRendersDropped.get() + " superseded");
+        ForecastHistory.getInstance(this).dump(writer);
+        CacheRegistry.getInstance().dump(writer);
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         // If the notification is disabled, then stop this service.
@@ -267,8 +475,17 @@ public class AlwaysOnNotificationService
         final String useCurrentLocationKey = getString(R.string.key_use_current_location);
         if (key.equals(useCurrentLocationKey)) {
             Log.d(TAG, "Use current location pref changed");
+            mForecast = null;
+            mLocationPipeline.setDisplayedCell(null);
             updateLocationListener();
-            Worker.doOnce(this);
+            Refresher.expedite(this);
+        }
+
+        // Switching the timeline rendering mode changes nothing in the view model, so force the
+        // forecast to be posted again.
+        if (key.equals(getString(R.string.key_native_timeline)) && mForecast != null) {
+            mPostedModel = null;
+            startNotification(mForecast);
         }
 
         // Check either the current location or the static place name.
@@ -280,7 +497,7 @@ public class AlwaysOnNotificationService
             final String currentLatLongKey = getString(R.string.key_current_lat_long);
             if (key.equals(currentLatLongKey) && !mOldPrefsKeys.contains(currentLatLongKey)) {
                 Log.d(TAG, "Current location updated for the first time");
-                Worker.doOnce(this);
+                Refresher.expedite(this);
             }
         }
         else {
@@ -288,7 +505,9 @@ public class AlwaysOnNotificationService
             final String staticPlaceNameKey = getString(R.string.key_static_place_name);
             if (key.equals(staticPlaceNameKey)) {
                 Log.d(TAG, "Static place name updated");
-                Worker.doOnce(this);
+                mForecast = null;
+                mLocationPipeline.setDisplayedCell(null);
+                Refresher.expedite(this);
             }
         }
 
@@ -301,23 +520,11 @@ public class AlwaysOnNotificationService
         final String useCurrentLocationKey = getString(R.string.key_use_current_location);
         if (sharedPreferences.getBoolean(useCurrentLocationKey, false)) {
             Log.d(TAG, "Use current location pref is on, requesting location updates");
-            LocationRequest request = LocationRequest.create()
-                    .setInterval(TimeUnit.MILLISECONDS.convert(
-                            LOCATION_INTERVAL_MINS, TimeUnit.MINUTES))
-                    .setFastestInterval(TimeUnit.MILLISECONDS.convert(
-                            LOCATION_FASTEST_INTERVAL_MINS, TimeUnit.MINUTES))
-                    .setSmallestDisplacement(LOCATION_SMALLEST_DISPLACEMENT_M)
-                    .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
-            try {
-                mLocationProvider.requestLocationUpdates(request, mLocationCallback, null);
-            }
-            catch (SecurityException ignored) {
-                Log.w(TAG, "Unable to request location updates");
-            }
+            mLocationPipeline.start();
         }
         else {
             Log.d(TAG, "Use current location pref is off, removing location updates");
-            mLocationProvider.removeLocationUpdates(mLocationCallback);
+            mLocationPipeline.stop();
         }
     }
 
@@ -349,5 +556,11 @@ public class AlwaysOnNotificationService
             intent.putExtra(STATUS_EXTRAS_KEY, status);
             context.startForegroundService(intent);
         }
+        else if (status == MESSAGE_NEW_FORECAST && forecast != null) {
+            // Without the service, the widgets still need to be updated from here.
+            ForecastCache.getInstance().setLatest(forecast);
+            ForecastContentProvider.notifyChanged(context, forecast);
+            TimelineWidgetProvider.updateAll(context, forecast);
+        }
     }
 }
@@ -0,0 +1,162 @@
+package org.stevendao.brightsky;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/// Every in-memory cache in the process, with its estimated footprint. The caches share one byte
+/// budget: when one grows past it, the caches that are cheapest to refill are trimmed first. Under
+/// memory pressure (onTrimMemory / onLowMemory in the always-on service) whole priority classes are
+/// dropped, again cheapest first, so the long-lived process stays small enough not to be killed.
+public final class CacheRegistry {
+    /// In the order in which caches are shed.
+    public enum Priority {
+        /// Bitmaps that can be re-rendered from data at hand.
+        RENDERED,
+        /// Lookups that cost a Geocoder call to refill.
+        LOOKUP,
+        /// Forecasts that cost requests to api.weather.gov to refill.
+        FETCHED,
+    }
+
+    public interface Cache {
+        /// Also the name its hit ratio is recorded under in {@link Metrics}, if it records one.
+        @NonNull String getName();
+
+        /// An estimate of the heap the cache's entries hold.
+        long getSizeBytes();
+
+        /// Drops entries, least recently used first, until the cache holds at most maxBytes.
+        void trimToSize(long maxBytes);
+    }
+
+    private static final String TAG = CacheRegistry.class.getName();
+    private static final long BUDGET_BYTES = 6 * 1024 * 1024;
+
+    private static CacheRegistry sInstance = null;
+
+    private final Map<Cache, Priority> mCaches = new LinkedHashMap<>();
+    private long mTrims = 0;
+
+    public static synchronized @NonNull CacheRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new CacheRegistry();
+        }
+        return sInstance;
+    }
+
+    private CacheRegistry() {}
+
+    public synchronized void register(@NonNull Cache cache, @NonNull Priority priority) {
+        mCaches.put(cache, priority);
+    }
+
+    /// Called by a cache after it grows (and without holding its own lock, since this takes the
+    /// lock of every cache in turn). Trims the cheapest caches until the total fits the budget.
+    public synchronized void enforceBudget() {
+        long total = getTotalBytes();
+        if (total <= BUDGET_BYTES) {
+            return;
+        }
+
+        for (Priority priority : Priority.values()) {
+            for (Map.Entry<Cache, Priority> entry : mCaches.entrySet()) {
+                if (entry.getValue() != priority) {
+                    continue;
+                }
+                final Cache cache = entry.getKey();
+                final long size = cache.getSizeBytes();
+                cache.trimToSize(Math.max(0, size - (total - BUDGET_BYTES)));
+                total += cache.getSizeBytes() - size;
+                if (total <= BUDGET_BYTES) {
+                    mTrims++;
+                    return;
+                }
+            }
+        }
+        mTrims++;
+    }
+
+    /// Sheds whole priority classes according to how much pressure the system reports.
+    public synchronized void onTrimMemory(int level) {
+        final Priority upTo;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            upTo = Priority.FETCHED;
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            upTo = Priority.LOOKUP;
+        }
+        else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            upTo = Priority.RENDERED;
+        }
+        else {
+            return;
+        }
+
+        final long before = getTotalBytes();
+        for (Map.Entry<Cache, Priority> entry : mCaches.entrySet()) {
+            if (entry.getValue().compareTo(upTo) <= 0) {
+                entry.getKey().trimToSize(0);
+            }
+        }
+        mTrims++;
+        Log.d(TAG, "Trim level " + level + ": shed caches up to " + upTo + ", "
+                + before + " -> " + getTotalBytes() + " bytes");
+    }
+
+    private long getTotalBytes() {
+        long total = 0;
+        for (Cache cache : mCaches.keySet()) {
+            total += cache.getSizeBytes();
+        }
+        return total;
+    }
+
+    /// Each cache's size, priority and hit ratio (if it records one), keyed by cache name, followed
+    /// by the hit ratios of lookups that aren't backed by a registered cache.
+    public @NonNull Map<String, String> getSummaries() {
+        final Map<String, String> hitRatios = Metrics.getInstance().getCacheSummaries();
+        final List<Map.Entry<Cache, Priority>> caches;
+        synchronized (this) {
+            caches = new ArrayList<>(mCaches.entrySet());
+        }
+
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<Cache, Priority> entry : caches) {
+            final String name = entry.getKey().getName();
+            final String hitRatio = hitRatios.remove(name);
+            result.put(name, String.format(Locale.ROOT, "%.1fKB, %s%s",
+                    entry.getKey().getSizeBytes() / 1024f,
+                    entry.getValue().name().toLowerCase(Locale.ROOT),
+                    hitRatio != null ? ", hits " + hitRatio : ""));
+        }
+        for (Map.Entry<String, String> entry : hitRatios.entrySet()) {
+            result.put(entry.getKey(), "hits " + entry.getValue());
+        }
+        return result;
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        final long total;
+        final long trims;
+        synchronized (this) {
+            total = getTotalBytes();
+            trims = mTrims;
+        }
+        writer.println(String.format(Locale.ROOT, "Caches: %.1fKB of %.1fKB budget, %d trims",
+                total / 1024f, BUDGET_BYTES / 1024f, trims));
+        for (Map.Entry<String, String> entry : getSummaries().entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.stevendao.brightsky;
+
+import android.location.Location;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/// The most recent forecast in the {@link ForecastCache} whose gridpoint cell covers the location,
+/// as long as it isn't too old. It answers instantly and never touches the network, so it's the
+/// fallback while api.weather.gov is slow or down.
+public final class CachedForecastProvider implements ForecastProvider {
+    private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    @Override
+    public @NonNull String getName() {
+        return "cache";
+    }
+
+    @Override
+    public @Nullable Forecast fetch(@NonNull Location location, @NonNull Query query) {
+        return ForecastCache.getInstance().findContaining(
+                location.getLatitude(), location.getLongitude(), MAX_AGE_MILLIS);
+    }
+}
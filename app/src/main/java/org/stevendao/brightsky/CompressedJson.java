@@ -0,0 +1,122 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/// Negotiates gzip for the JSON documents from api.weather.gov and accounts for their size.
+/// HttpURLConnection only decompresses transparently when it picks the encoding itself, and then
+/// hides the compressed size; asking for gzip explicitly keeps the body compressed all the way into
+/// the response, so both the bytes on the wire and the decoded bytes can be counted.
+public final class CompressedJson {
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final int BUFFER_CHARS = 8192;
+
+    private CompressedJson() {}
+
+    /// Adds the request header that asks for a gzipped body.
+    public static void addHeaders(@NonNull Map<String, String> headers) {
+        headers.put(ACCEPT_ENCODING, "gzip");
+    }
+
+    /// Decodes the body (decompressing it as it's read, if it's gzipped) and records its wire and
+    /// decoded sizes under the stage. Bodies that Volley answered from its own cache, or that came
+    /// with a 304, didn't cross the network and only count as decoded bytes. This doesn't stream
+    /// into the parser: org.json only parses from a String, so the decoded text is collected into
+    /// one first. It never exists as a decoded byte array, though.
+    public static @NonNull JSONObject parse(
+            @NonNull NetworkResponse response,
+            @NonNull Metrics.Stage stage) throws IOException, JSONException {
+        final boolean gzipped = "gzip".equalsIgnoreCase(getHeader(response, CONTENT_ENCODING));
+        final Charset charset = Charset.forName(
+                HttpHeaderParser.parseCharset(response.headers, "utf-8"));
+
+        final CountingInputStream decoded;
+        final StringBuilder sb = new StringBuilder(
+                gzipped ? response.data.length * 8 : response.data.length);
+        try (InputStream in = new ByteArrayInputStream(response.data)) {
+            decoded = new CountingInputStream(gzipped ? new GZIPInputStream(in) : in);
+            try (Reader reader = new InputStreamReader(decoded, charset)) {
+                final char[] buffer = new char[BUFFER_CHARS];
+                int n;
+                while ((n = reader.read(buffer)) != -1) {
+                    sb.append(buffer, 0, n);
+                }
+            }
+        }
+
+        // Volley's cache dispatcher builds its responses without a network time.
+        final boolean fromNetwork = !response.notModified && response.networkTimeMs > 0;
+        Metrics.getInstance().recordTransfer(
+                stage, fromNetwork ? response.data.length : 0, decoded.getCount());
+        return new JSONObject(sb.toString());
+    }
+
+    /// Header names are case-insensitive, but Volley's map is not.
+    public static @Nullable String getHeader(
+            @NonNull NetworkResponse response,
+            @NonNull String name) {
+        if (response.headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> entry : response.headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long mCount = 0;
+
+        private CountingInputStream(@NonNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        private long getCount() {
+            return mCount;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/// A GET for a JSON document that is polled repeatedly. It sends the validators from the last
+/// response (If-None-Match / If-Modified-Since), so an unchanged document costs a bodiless 304
+/// and no parsing at all.
+public class ConditionalJsonRequest extends Request<ConditionalJsonRequest.Result> {
+    public static final class Result {
+        private final @Nullable JSONObject mJson;
+        private final @Nullable String mETag;
+        private final @Nullable String mLastModified;
+
+        private Result(
+                @Nullable JSONObject json,
+                @Nullable String eTag,
+                @Nullable String lastModified) {
+            mJson = json;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        public boolean isNotModified() {
+            return mJson == null;
+        }
+
+        /// The new document, or null if it's unchanged since the validators that were sent.
+        public @Nullable JSONObject getJson() {
+            return mJson;
+        }
+
+        public @Nullable String getETag() {
+            return mETag;
+        }
+
+        public @Nullable String getLastModified() {
+            return mLastModified;
+        }
+    }
+
+    private final @Nullable String mETag;
+    private final @Nullable String mLastModified;
+    private final @NonNull Metrics.Stage mStage;
+    private final @NonNull Response.Listener<Result> mListener;
+
+    public ConditionalJsonRequest(
+            @NonNull String url,
+            @Nullable String eTag,
+            @Nullable String lastModified,
+            @NonNull Metrics.Stage stage,
+            @NonNull Response.Listener<Result> listener,
+            @Nullable Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mETag = eTag;
+        mLastModified = lastModified;
+        mStage = stage;
+        mListener = listener;
+
+        // Volley's own cache would answer the 304s itself with the stale body; the validators are
+        // managed by the caller instead. Like the forecast requests, each one is a single attempt
+        // against the fetch budget; the caller polls again later.
+        setShouldCache(false);
+        setRetryPolicy(new DefaultRetryPolicy(Utils.REQUEST_TIMEOUT_MS, 0, 1f));
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>(super.getHeaders());
+        CompressedJson.addHeaders(headers);
+        if (mETag != null) {
+            headers.put("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            headers.put("If-Modified-Since", mLastModified);
+        }
+        return headers;
+    }
+
+    @Override
+    protected Response<Result> parseNetworkResponse(NetworkResponse response) {
+        if (response.notModified || response.statusCode == 304) {
+            Metrics.getInstance().recordCacheLookup(getCacheName(), true);
+            return Response.success(new Result(null, mETag, mLastModified), null);
+        }
+
+        Metrics.getInstance().recordCacheLookup(getCacheName(), false);
+        try {
+            return Response.success(
+                    new Result(
+                            CompressedJson.parse(response, mStage),
+                            CompressedJson.getHeader(response, "ETag"),
+                            CompressedJson.getHeader(response, "Last-Modified")),
+                    null);
+        } catch (IOException | JSONException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(Result response) {
+        mListener.onResponse(response);
+    }
+
+    /// Not-modified responses are counted as cache hits, under the stage's name.
+    private @NonNull String getCacheName() {
+        return mStage.name().toLowerCase(Locale.ROOT);
+    }
+}
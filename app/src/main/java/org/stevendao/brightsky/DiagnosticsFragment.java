@@ -0,0 +1,90 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.preference.Preference;
+import androidx.preference.PreferenceCategory;
+import androidx.preference.PreferenceFragmentCompat;
+
+import java.util.Map;
+
+/// Debug-only screen showing the refresh {@link Metrics}, {@link RefreshPolicy} and
+/// {@link CacheRegistry}. These live in the same process as the always-on service, so this just
+/// reads the shared instances whenever the screen is shown.
+public class DiagnosticsFragment extends PreferenceFragmentCompat {
+    @Override
+    public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+        setPreferencesFromResource(R.xml.diagnostics, rootKey);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        populate();
+    }
+
+    private void populate() {
+        final Context context = requireContext();
+        final Metrics metrics = Metrics.getInstance();
+
+        PreferenceCategory policy = findPreference("policy");
+        policy.removeAll();
+        final RefreshPolicy refreshPolicy = RefreshPolicy.getInstance(context);
+        final RefreshPolicy.Mode mode = refreshPolicy.getLastMode();
+        Preference modePreference = new Preference(context);
+        modePreference.setIconSpaceReserved(false);
+        if (mode == null) {
+            modePreference.setTitle(R.string.refresh_mode_none);
+        }
+        else {
+            modePreference.setTitle(mode.getDescriptionId());
+            modePreference.setSummary(refreshPolicy.getLastReason() + "\n"
+                    + refreshPolicy.getModeCounts());
+        }
+        policy.addPreference(modePreference);
+
+        PreferenceCategory providers = findPreference("providers");
+        providers.removeAll();
+        for (Map.Entry<String, String> entry :
+                FallbackForecastProvider.getDefault(context).getHealthSummaries().entrySet()) {
+            Preference preference = new Preference(context);
+            preference.setIconSpaceReserved(false);
+            preference.setTitle(entry.getKey());
+            preference.setSummary(entry.getValue());
+            providers.addPreference(preference);
+        }
+
+        PreferenceCategory stages = findPreference("stages");
+        stages.removeAll();
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            Preference preference = new Preference(context);
+            preference.setIconSpaceReserved(false);
+            preference.setTitle(stage.getDescriptionId());
+            preference.setSummary(metrics.getStageSummary(stage) + "\n"
+                    + metrics.getStageHistogram(stage));
+            stages.addPreference(preference);
+        }
+
+        PreferenceCategory caches = findPreference("caches");
+        caches.removeAll();
+        for (Map.Entry<String, String> entry :
+                CacheRegistry.getInstance().getSummaries().entrySet()) {
+            Preference preference = new Preference(context);
+            preference.setIconSpaceReserved(false);
+            preference.setTitle(entry.getKey());
+            preference.setSummary(entry.getValue());
+            caches.addPreference(preference);
+        }
+
+        PreferenceCategory transfer = findPreference("transfer");
+        transfer.removeAll();
+        for (Map.Entry<String, String> entry : metrics.getTransferSummaries().entrySet()) {
+            Preference preference = new Preference(context);
+            preference.setIconSpaceReserved(false);
+            preference.setTitle(entry.getKey());
+            preference.setSummary(entry.getValue());
+            transfer.addPreference(preference);
+        }
+    }
+}
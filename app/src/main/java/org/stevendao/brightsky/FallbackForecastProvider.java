@@ -0,0 +1,224 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/// Asks a primary provider first and fails over to a secondary one if the primary errors, comes
+/// back empty, or misses its latency target. A primary that's merely slow keeps going in the
+/// background: if the secondary answered in the meantime, the primary's forecast goes to the
+/// query's late listener when it arrives, and if the secondary had nothing, the fetch waits for the
+/// primary after all. The target is measured to the primary's first usable result: once it has
+/// handed its hourly forecast to the query's hourly listener, the timeline showing is fresh, so the
+/// rest of its fetch is waited for instead of being replaced by an older forecast. Each provider's
+/// outcomes and latencies are recorded for diagnostics.
+public final class FallbackForecastProvider implements ForecastProvider {
+    private static final String TAG = FallbackForecastProvider.class.getName();
+    private static final long DEFAULT_LATENCY_TARGET_MILLIS = 5000;
+    private static final int RING_SIZE = 64;
+
+    private static FallbackForecastProvider sDefault = null;
+
+    private final @NonNull ForecastProvider mPrimary;
+    private final @NonNull ForecastProvider mSecondary;
+    private final long mLatencyTargetMillis;
+    private final @NonNull ExecutorService mExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ForecastProvider");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Health> mHealth = new LinkedHashMap<>();
+
+    /// api.weather.gov, falling back to cached forecasts.
+    public static synchronized @NonNull FallbackForecastProvider getDefault(
+            @NonNull Context context) {
+        if (sDefault == null) {
+            sDefault = new FallbackForecastProvider(
+                    new NwsForecastProvider(context),
+                    new CachedForecastProvider(),
+                    DEFAULT_LATENCY_TARGET_MILLIS);
+        }
+        return sDefault;
+    }
+
+    public FallbackForecastProvider(
+            @NonNull ForecastProvider primary,
+            @NonNull ForecastProvider secondary,
+            long latencyTargetMillis) {
+        mPrimary = primary;
+        mSecondary = secondary;
+        mLatencyTargetMillis = latencyTargetMillis;
+        mHealth.put(primary.getName(), new Health());
+        mHealth.put(secondary.getName(), new Health());
+    }
+
+    @Override
+    public @NonNull String getName() {
+        return mPrimary.getName() + "+" + mSecondary.getName();
+    }
+
+    @Override
+    public @Nullable Forecast fetch(@NonNull Location location, @NonNull Query query) {
+        final CompletableFuture<Void> hourlyDelivered = new CompletableFuture<>();
+        final Forecast.HourlyListener hourlyListener = query.getHourlyListener();
+        final Query primaryQuery = query.withHourlyListener(hourly -> {
+            hourlyDelivered.complete(null);
+            if (hourlyListener != null) {
+                hourlyListener.onHourlyForecast(hourly);
+            }
+        });
+        final CompletableFuture<Forecast> primary = start(mPrimary, location, primaryQuery);
+
+        boolean missedTarget = false;
+        try {
+            CompletableFuture.anyOf(primary, hourlyDelivered)
+                    .get(mLatencyTargetMillis, TimeUnit.MILLISECONDS);
+            Forecast forecast = primary.get();
+            if (forecast != null) {
+                return forecast;
+            }
+            Log.d(TAG, mPrimary.getName() + " had no forecast, failing over");
+        } catch (TimeoutException e) {
+            Log.d(TAG, mPrimary.getName() + " missed its latency target, failing over");
+            missedTarget = true;
+            getHealth(mPrimary).recordMissedTarget();
+        } catch (ExecutionException e) {
+            Log.w(TAG, mPrimary.getName() + " failed, failing over", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Forecast fallback;
+        try {
+            fallback = start(mSecondary, location, query).get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, mSecondary.getName() + " failed", e.getCause());
+            fallback = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        if (fallback != null) {
+            final Forecast.HourlyListener lateListener = query.getLateListener();
+            if (missedTarget && lateListener != null) {
+                primary.thenAccept(late -> {
+                    if (late != null) {
+                        Log.d(TAG, mPrimary.getName() + " forecast arrived late");
+                        lateListener.onHourlyForecast(late);
+                    }
+                });
+            }
+            return fallback;
+        }
+
+        // Nothing to stand in, so a slow primary is still the best bet.
+        if (missedTarget) {
+            try {
+                return primary.get();
+            } catch (ExecutionException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /// Runs the provider on the coordinator's threads, recording how it went before the future
+    /// completes.
+    private @NonNull CompletableFuture<Forecast> start(
+            @NonNull ForecastProvider provider,
+            @NonNull Location location,
+            @NonNull Query query) {
+        final Health health = getHealth(provider);
+        return CompletableFuture.supplyAsync(() -> {
+            final long start = System.nanoTime();
+            Forecast forecast = null;
+            try {
+                forecast = provider.fetch(location, query);
+                return forecast;
+            } finally {
+                health.record(forecast != null,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }, mExecutor);
+    }
+
+    private synchronized @NonNull Health getHealth(@NonNull ForecastProvider provider) {
+        return mHealth.get(provider.getName());
+    }
+
+    /// A one-line summary of each provider's recent health, keyed by provider name.
+    public synchronized @NonNull Map<String, String> getHealthSummaries() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Health> entry : mHealth.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().summarize(mLatencyTargetMillis));
+        }
+        return result;
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println("Forecast providers (latency target " + mLatencyTargetMillis + "ms):");
+        for (Map.Entry<String, String> entry : getHealthSummaries().entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    private static final class Health {
+        private final long[] mLatenciesMillis = new long[RING_SIZE];
+        private final boolean[] mSuccesses = new boolean[RING_SIZE];
+        private long mCount = 0;
+        private long mMissedTargets = 0;
+
+        private synchronized void record(boolean success, long latencyMillis) {
+            mLatenciesMillis[(int) (mCount % RING_SIZE)] = latencyMillis;
+            mSuccesses[(int) (mCount % RING_SIZE)] = success;
+            mCount++;
+        }
+
+        private synchronized void recordMissedTarget() {
+            mMissedTargets++;
+        }
+
+        private synchronized @NonNull String summarize(long latencyTargetMillis) {
+            if (mCount == 0) {
+                return "no requests";
+            }
+
+            final int n = (int) Math.min(mCount, RING_SIZE);
+            int successes = 0;
+            for (int i = 0; i < n; ++i) {
+                if (mSuccesses[i]) {
+                    successes++;
+                }
+            }
+            final long[] sorted = Arrays.copyOf(mLatenciesMillis, n);
+            Arrays.sort(sorted);
+
+            return String.format(Locale.ROOT,
+                    "n=%d ok=%d/%d p50=%dms p99=%dms, %d over %dms",
+                    mCount, successes, n,
+                    sorted[(n - 1) / 2],
+                    sorted[(int) Math.ceil(0.99 * n) - 1],
+                    mMissedTargets, latencyTargetMillis);
+        }
+    }
+}
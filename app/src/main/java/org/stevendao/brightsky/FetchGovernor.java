@@ -0,0 +1,195 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/// Bounds the total number of api.weather.gov requests, no matter whether they come from the
+/// periodic worker, one-shot updates, retries or the prefetcher. There are two persistent token
+/// buckets: one for requests, and one for radio wakeups (a batch of requests that starts after the
+/// radio has had time to go idle). Lower priorities have to leave part of each bucket untouched, so
+/// that user-initiated refreshes can still go through after the background has used its share.
+public final class FetchGovernor {
+    public enum Priority {
+        USER(0f),
+        PERIODIC(0.25f),
+        PREFETCH(0.5f),
+        /// Alert and observation polls, which the {@link PollScheduler} reschedules when they're
+        /// refused.
+        POLL(0.5f),
+        ;
+
+        /// Fraction of each bucket that must remain after this priority takes its tokens.
+        private final float mReserve;
+
+        Priority(float reserve) {
+            mReserve = reserve;
+        }
+    }
+
+    private static final String TAG = FetchGovernor.class.getName();
+    private static final String PREFS_NAME = "org.stevendao.brightsky.FETCH_GOVERNOR";
+    private static final String LAST_ACTIVITY_KEY = "lastActivity";
+    private static final int REQUESTS_PER_HOUR = 30;
+    /// In the steady state, the periodic refresh wakes the radio twice an hour and the poll ticks
+    /// four times (less whatever lines up), so polls keep well clear of their reserve.
+    private static final int WAKEUPS_PER_HOUR = 10;
+    private static final long RADIO_TAIL_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private static FetchGovernor sInstance = null;
+
+    private final SharedPreferences mPrefs;
+    private final TokenBucket mRequests;
+    private final TokenBucket mWakeups;
+    private long mLastActivityMillis;
+    private long mGranted = 0;
+    private long mDenied = 0;
+    private boolean mBypassed = false;
+    private @Nullable Runnable mWakeupListener = null;
+
+    public static synchronized @NonNull FetchGovernor getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new FetchGovernor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private FetchGovernor(@NonNull Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mRequests = new TokenBucket("requests", REQUESTS_PER_HOUR);
+        mWakeups = new TokenBucket("wakeups", WAKEUPS_PER_HOUR);
+        mRequests.load(mPrefs);
+        mWakeups.load(mPrefs);
+        mLastActivityMillis = mPrefs.getLong(LAST_ACTIVITY_KEY, 0);
+    }
+
+    /// Takes tokens for a batch of requests issued back-to-back. Returns false, and takes nothing,
+    /// if the batch would exceed the budget available to the given priority.
+    public synchronized boolean tryAcquire(@NonNull Priority priority, int requests) {
+        if (mBypassed) {
+            return true;
+        }
+
+        final long now = Utils.getClock().millis();
+        mRequests.refill(now);
+        mWakeups.refill(now);
+
+        final boolean wakeup = now - mLastActivityMillis > RADIO_TAIL_MILLIS
+                || now < mLastActivityMillis;
+        if (!mRequests.canTake(requests, priority.mReserve)
+                || (wakeup && !mWakeups.canTake(1, priority.mReserve))) {
+            mDenied++;
+            Log.d(TAG, "Denied " + requests + " " + priority + " requests");
+            return false;
+        }
+
+        mRequests.take(requests);
+        if (wakeup) {
+            mWakeups.take(1);
+            if (priority != Priority.POLL && mWakeupListener != null) {
+                mWakeupListener.run();
+            }
+        }
+        mLastActivityMillis = now;
+        mGranted++;
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        mRequests.save(editor);
+        mWakeups.save(editor);
+        editor.putLong(LAST_ACTIVITY_KEY, mLastActivityMillis).apply();
+        return true;
+    }
+
+    /// Called, on whichever thread took the tokens, whenever anything but a poll wakes the radio,
+    /// so that polls due soon can go out while it's still awake.
+    public synchronized void setWakeupListener(@Nullable Runnable listener) {
+        mWakeupListener = listener;
+    }
+
+    /// How many batches have been refused since the process started.
+    public synchronized long getDeniedCount() {
+        return mDenied;
+    }
+
+    /// Fills both buckets and forgets the last activity, as on a device that's been idle.
+    @VisibleForTesting
+    public synchronized void reset() {
+        final long now = Utils.getClock().millis();
+        mRequests.fill(now);
+        mWakeups.fill(now);
+        mLastActivityMillis = 0;
+    }
+
+    /// Lets load tests issue more requests than a real device ever should.
+    @VisibleForTesting
+    public synchronized void setBypassed(boolean bypassed) {
+        mBypassed = bypassed;
+    }
+
+    public synchronized void dump(@NonNull PrintWriter writer) {
+        final long now = Utils.getClock().millis();
+        mRequests.refill(now);
+        mWakeups.refill(now);
+        writer.println(String.format(Locale.ROOT,
+                "Fetch budget: %.1f/%d requests, %.1f/%d wakeups left; %d granted, %d denied",
+                mRequests.mTokens, REQUESTS_PER_HOUR,
+                mWakeups.mTokens, WAKEUPS_PER_HOUR,
+                mGranted, mDenied));
+    }
+
+    /// A bucket that holds up to its hourly capacity and refills continuously at that rate.
+    private static final class TokenBucket {
+        private final @NonNull String mName;
+        private final int mCapacity;
+        private double mTokens;
+        private long mLastRefillMillis;
+
+        private TokenBucket(@NonNull String name, int capacity) {
+            mName = name;
+            mCapacity = capacity;
+            mTokens = capacity;
+            mLastRefillMillis = Utils.getClock().millis();
+        }
+
+        private void load(@NonNull SharedPreferences prefs) {
+            mTokens = prefs.getFloat(mName + "Tokens", mCapacity);
+            mLastRefillMillis = prefs.getLong(mName + "LastRefill", mLastRefillMillis);
+        }
+
+        private void save(@NonNull SharedPreferences.Editor editor) {
+            editor.putFloat(mName + "Tokens", (float) mTokens);
+            editor.putLong(mName + "LastRefill", mLastRefillMillis);
+        }
+
+        private void fill(long now) {
+            mTokens = mCapacity;
+            mLastRefillMillis = now;
+        }
+
+        private void refill(long now) {
+            // If the wall clock went backwards, then just restart the refill from here.
+            if (now > mLastRefillMillis) {
+                final double hours =
+                        (now - mLastRefillMillis) / (double) TimeUnit.HOURS.toMillis(1);
+                mTokens = Math.min(mCapacity, mTokens + hours * mCapacity);
+            }
+            mLastRefillMillis = now;
+        }
+
+        private boolean canTake(int tokens, float reserve) {
+            return mTokens - tokens >= reserve * mCapacity;
+        }
+
+        private void take(int tokens) {
+            mTokens -= tokens;
+        }
+    }
+}
@@ -5,9 +5,9 @@ import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.RequestFuture;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -21,6 +21,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class Forecast implements Parcelable {
     public static final Parcelable.Creator<Forecast> CREATOR
@@ -34,29 +36,94 @@ public class Forecast implements Parcelable {
         }
     };
 
+    /// The daily forecast is issued a few times a day, so its description stays current for hours.
+    private static final long DESCRIPTION_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(3);
+
     private final @NonNull GeographicPoint mPoint;
     private final @NonNull List<ForecastPeriod> mForecastPeriods;
     private final @Nullable String mDescription;
+    /// When the description was fetched, which is older than the forecast's fetch time if it was
+    /// carried over from an earlier forecast.
+    private final long mDescriptionTimeMillis;
+    private final @Nullable GridCell mCell;
+    private final long mFetchTimeMillis;
+
+    /// Receives a forecast as soon as its hourly data is parsed, before the daily forecast (which
+    /// only supplies the description) has arrived.
+    public interface HourlyListener {
+        void onHourlyForecast(@NonNull Forecast forecast);
+    }
 
     public static Forecast request(
             @NonNull GeographicPoint point,
             @NonNull RequestQueue volleyQueue) {
+        return request(point, volleyQueue, false, null);
+    }
+
+    /// With hourlyOnly, the daily forecast is skipped if a recent enough description for this
+    /// gridpoint is cached, halving the bytes transferred. Otherwise both documents are requested
+    /// at once, and if there's a listener, it gets the forecast as soon as the hourly document is
+    /// parsed, with a recent cached description (if any) standing in until the daily one arrives.
+    public static Forecast request(
+            @NonNull GeographicPoint point,
+            @NonNull RequestQueue volleyQueue,
+            boolean hourlyOnly,
+            @Nullable HourlyListener listener) {
         if (point.getForecastUrl() == null || point.getForecastHourlyUrl() == null) {
             return new Forecast(point);
         }
 
-        RequestFuture<JSONObject> forecastFuture =
-                Utils.requestJsonObject(volleyQueue, point.getForecastUrl());
-        RequestFuture<JSONObject> forecastHourlyFuture =
-                Utils.requestJsonObject(volleyQueue, point.getForecastHourlyUrl());
+        // A cached description is only reused, whether in place of the daily forecast or until it
+        // arrives (or if it fails), while it's recent enough.
+        final Forecast previous = ForecastCache.getInstance().get(point.getForecastHourlyUrl());
+        final boolean descriptionFresh = previous != null
+                && previous.getDescription() != null
+                && Utils.getClock().millis() - previous.getDescriptionTimeMillis()
+                        <= DESCRIPTION_MAX_AGE_MILLIS;
+        final String cachedDescription = descriptionFresh ? previous.getDescription() : null;
+        final long cachedDescriptionTime =
+                descriptionFresh ? previous.getDescriptionTimeMillis() : 0;
+        final boolean skipDaily = hourlyOnly && descriptionFresh;
+
+        final long start = Metrics.start();
+        Future<JSONObject> forecastFuture = skipDaily ? null : Utils.requestJsonObject(
+                volleyQueue, point.getForecastUrl(), Metrics.Stage.FORECAST);
+        Future<JSONObject> forecastHourlyFuture = Utils.requestJsonObject(
+                volleyQueue, point.getForecastHourlyUrl(), Metrics.Stage.FORECAST_HOURLY);
 
+        Forecast hourly;
         try {
-            JSONObject forecast = forecastFuture.get();
             JSONObject forecastHourly = forecastHourlyFuture.get();
-            return new Forecast(point, forecast, forecastHourly);
+            Metrics.getInstance().record(Metrics.Stage.FORECAST_HOURLY, start);
+
+            final long parseStart = Metrics.start();
+            hourly = new Forecast(
+                    point, cachedDescription, cachedDescriptionTime, forecastHourly);
+            Metrics.getInstance().record(Metrics.Stage.PARSE, parseStart);
         } catch (InterruptedException | ExecutionException e) {
+            if (forecastFuture != null) {
+                forecastFuture.cancel(true);
+            }
             return new Forecast(point);
         }
+
+        if (forecastFuture == null) {
+            return hourly;
+        }
+        if (listener != null && !hourly.getForecastPeriods().isEmpty()) {
+            listener.onHourlyForecast(hourly);
+        }
+
+        // The timeline doesn't depend on the daily forecast, so if it fails, then the hourly
+        // forecast is still worth showing with the cached description, or none if it was stale.
+        try {
+            JSONObject forecast = forecastFuture.get();
+            Metrics.getInstance().record(Metrics.Stage.FORECAST, start);
+            final String description = parseDescription(forecast);
+            return description != null ? hourly.withDescription(description) : hourly;
+        } catch (InterruptedException | ExecutionException e) {
+            return hourly;
+        }
     }
 
     private Forecast(@NonNull GeographicPoint point)
@@ -64,26 +131,29 @@ public class Forecast implements Parcelable {
         mPoint = point;
         mForecastPeriods = Collections.emptyList();
         mDescription = null;
+        mDescriptionTimeMillis = 0;
+        mCell = null;
+        mFetchTimeMillis = Utils.getClock().millis();
     }
 
-    private Forecast(
+    @VisibleForTesting
+    Forecast(
             @NonNull GeographicPoint point,
             @NonNull JSONObject rawForecast,
             @NonNull JSONObject rawHourlyForecast)
     {
-        mPoint = point;
+        this(point, parseDescription(rawForecast), Utils.getClock().millis(), rawHourlyForecast);
+    }
 
-        String description;
-        try {
-            description = rawForecast
-                    .getJSONObject("properties")
-                    .getJSONArray("periods")
-                    .getJSONObject(0)
-                    .getString("detailedForecast");
-        } catch (JSONException e) {
-            description = null;
-        }
+    private Forecast(
+            @NonNull GeographicPoint point,
+            @Nullable String description,
+            long descriptionTimeMillis,
+            @NonNull JSONObject rawHourlyForecast)
+    {
+        mPoint = point;
         mDescription = description;
+        mDescriptionTimeMillis = descriptionTimeMillis;
 
         mForecastPeriods = new ArrayList<>();
         try {
@@ -97,6 +167,51 @@ public class Forecast implements Parcelable {
         } catch (JSONException e) {
             mForecastPeriods.clear();
         }
+
+        mCell = GridCell.fromGeometry(rawHourlyForecast.optJSONObject("geometry"));
+        mFetchTimeMillis = Utils.getClock().millis();
+    }
+
+    private Forecast(
+            @NonNull GeographicPoint point,
+            @NonNull List<ForecastPeriod> periods,
+            @Nullable String description,
+            long descriptionTimeMillis,
+            @Nullable GridCell cell,
+            long fetchTimeMillis)
+    {
+        mPoint = point;
+        mForecastPeriods = periods;
+        mDescription = description;
+        mDescriptionTimeMillis = descriptionTimeMillis;
+        mCell = cell;
+        mFetchTimeMillis = fetchTimeMillis;
+    }
+
+    /// The same forecast for a different point (e.g. one with a better place name); the periods
+    /// are shared, not copied.
+    public @NonNull Forecast withGeographicPoint(@NonNull GeographicPoint point) {
+        return new Forecast(point, mForecastPeriods, mDescription, mDescriptionTimeMillis,
+                mCell, mFetchTimeMillis);
+    }
+
+    /// The same forecast with a description that was just fetched; the periods are shared, not
+    /// copied.
+    public @NonNull Forecast withDescription(@Nullable String description) {
+        return new Forecast(mPoint, mForecastPeriods, description, Utils.getClock().millis(),
+                mCell, mFetchTimeMillis);
+    }
+
+    private static @Nullable String parseDescription(@NonNull JSONObject rawForecast) {
+        try {
+            return rawForecast
+                    .getJSONObject("properties")
+                    .getJSONArray("periods")
+                    .getJSONObject(0)
+                    .getString("detailedForecast");
+        } catch (JSONException e) {
+            return null;
+        }
     }
 
     public @NonNull GeographicPoint getGeographicPoint() {
@@ -111,13 +226,26 @@ public class Forecast implements Parcelable {
         return Collections.unmodifiableList(mForecastPeriods);
     }
 
+    /// The gridpoint cell that this forecast covers, if api.weather.gov reported one.
+    public @Nullable GridCell getCell() {
+        return mCell;
+    }
+
+    public long getFetchTimeMillis() {
+        return mFetchTimeMillis;
+    }
+
+    public long getDescriptionTimeMillis() {
+        return mDescriptionTimeMillis;
+    }
+
     public @NonNull List<ForecastPeriod> get24HourForecastPeriods() {
         // Get the current time in our local time zone.
-        final OffsetDateTime now = OffsetDateTime.now();
+        final OffsetDateTime now = OffsetDateTime.now(Utils.getClock());
 
-        // Assume that the weather location doesn't change time zones, so its offset is always the
-        // offset from the first period. Convert the current time to the weather location's offset
-        // and move it to the beginning of the hour.
+        // Walk the hours in the first period's offset, converting the current time to it and moving
+        // it to the beginning of the hour. The offset can change within the window (at a DST
+        // shift), so each resampled hour takes the offset of the period that covers it.
         final ZoneOffset offset = mForecastPeriods.isEmpty()
                 ? now.getOffset()
                 : mForecastPeriods.get(0).getStartTime().getOffset();
@@ -143,7 +271,9 @@ public class Forecast implements Parcelable {
             // time. (Null means that we are missing data for the target time -- the periods have
             // "skipped" over the target time, or there is no more data.)
             if (period != null && !period.getStartTime().isAfter(target)) {
-                result.add(period.withTimeRange(target, target.plusHours(1)));
+                final OffsetDateTime start =
+                        target.withOffsetSameInstant(period.getStartTime().getOffset());
+                result.add(period.withTimeRange(start, start.plusHours(1)));
             }
             else {
                 result.add(new ForecastPeriod(
@@ -170,6 +300,9 @@ public class Forecast implements Parcelable {
         in.readParcelableList(mForecastPeriods, ForecastPeriod.class.getClassLoader());
 
         mDescription = in.readString();
+        mDescriptionTimeMillis = in.readLong();
+        mCell = in.readParcelable(GridCell.class.getClassLoader());
+        mFetchTimeMillis = in.readLong();
     }
 
     @Override
@@ -182,5 +315,8 @@ public class Forecast implements Parcelable {
         dest.writeParcelable(mPoint, flags);
         dest.writeParcelableList(mForecastPeriods, flags);
         dest.writeString(mDescription);
+        dest.writeLong(mDescriptionTimeMillis);
+        dest.writeParcelable(mCell, flags);
+        dest.writeLong(mFetchTimeMillis);
     }
 }
@@ -0,0 +1,131 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// Process-wide cache of recently fetched forecasts, keyed by their hourly forecast URL (which
+/// uniquely identifies the gridpoint). Shared by the periodic worker and the prefetcher, which
+/// both run in the same process as the always-on service.
+public final class ForecastCache implements CacheRegistry.Cache {
+    private static final int MAX_ENTRIES = 16;
+
+    /// Rough heap cost of a parsed period (the period, its two OffsetDateTimes and its Optional)
+    /// and of everything else in a forecast.
+    private static final long PERIOD_BYTES = 200;
+    private static final long FORECAST_BYTES = 1024;
+
+    private static ForecastCache sInstance = null;
+
+    private final LinkedHashMap<String, Forecast> mForecasts =
+            new LinkedHashMap<String, Forecast>(MAX_ENTRIES, 0.75f, /*accessOrder=*/ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Forecast> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /// The forecast most recently published to the notification and widgets.
+    private @Nullable Forecast mLatest = null;
+
+    public static synchronized @NonNull ForecastCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ForecastCache();
+            CacheRegistry.getInstance().register(sInstance, CacheRegistry.Priority.FETCHED);
+        }
+        return sInstance;
+    }
+
+    private ForecastCache() {}
+
+    /// Only complete forecasts that know their gridpoint cell are cached, since the cell is what
+    /// lets a later location be matched to the forecast without another /points request.
+    public void put(@NonNull Forecast forecast) {
+        final String key = forecast.getGeographicPoint().getForecastHourlyUrl();
+        if (key == null || forecast.getCell() == null || forecast.getForecastPeriods().isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mForecasts.put(key, forecast);
+        }
+        CacheRegistry.getInstance().enforceBudget();
+    }
+
+    /// The cached forecast for the gridpoint with the given hourly forecast URL, or null.
+    public synchronized @Nullable Forecast get(@NonNull String forecastHourlyUrl) {
+        return mForecasts.get(forecastHourlyUrl);
+    }
+
+    public synchronized void setLatest(@NonNull Forecast forecast) {
+        mLatest = forecast;
+    }
+
+    public synchronized @Nullable Forecast getLatest() {
+        return mLatest;
+    }
+
+    @VisibleForTesting
+    public synchronized void clear() {
+        mForecasts.clear();
+        mLatest = null;
+    }
+
+    /// Returns the newest cached forecast whose cell contains the given coordinates and which was
+    /// fetched no more than maxAgeMillis ago, or null.
+    public synchronized @Nullable Forecast findContaining(
+            double latitude,
+            double longitude,
+            long maxAgeMillis) {
+        final long now = Utils.getClock().millis();
+        Forecast result = null;
+        for (Forecast forecast : mForecasts.values()) {
+            final GridCell cell = forecast.getCell();
+            if (cell == null || now - forecast.getFetchTimeMillis() > maxAgeMillis) {
+                continue;
+            }
+            if (!cell.contains(latitude, longitude)) {
+                continue;
+            }
+            if (result == null || forecast.getFetchTimeMillis() > result.getFetchTimeMillis()) {
+                result = forecast;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public @NonNull String getName() {
+        return Metrics.CACHE_FORECAST;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (Forecast forecast : mForecasts.values()) {
+            size += estimateSizeBytes(forecast);
+        }
+        return size;
+    }
+
+    /// The latest forecast is kept regardless, since the notification is showing it.
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        long size = getSizeBytes();
+        Iterator<Forecast> it = mForecasts.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            size -= estimateSizeBytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long estimateSizeBytes(@NonNull Forecast forecast) {
+        final String description = forecast.getDescription();
+        return FORECAST_BYTES
+                + PERIOD_BYTES * forecast.getForecastPeriods().size()
+                + (description != null ? 2L * description.length() : 0);
+    }
+}
@@ -0,0 +1,183 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/// A compact binary encoding of forecast periods. Hourly periods are very regular, so each period
+/// usually takes 4 bytes:
+///  - start times are delta-of-delta encoded against the hourly cadence (0 for the next hour),
+///  - durations and UTC offsets are stored as differences from an hour and from the previous
+///    period's offset,
+///  - the condition, daytime flag and whether there's a temperature are packed into one byte,
+///  - and temperatures are stored as the difference from the previous period's.
+/// Periods don't have to be contiguous, so a subset of a forecast encodes just as well.
+public final class ForecastCodec {
+    private static final long HOUR_SECONDS = 3600;
+    private static final int CONDITION_MASK = 0x0f;
+    private static final int DAYTIME_FLAG = 0x10;
+    private static final int TEMPERATURE_FLAG = 0x20;
+
+    private static final WeatherCondition[] CONDITIONS = WeatherCondition.values();
+
+    static {
+        // The condition has to fit in the packed byte's low bits.
+        if (CONDITIONS.length > CONDITION_MASK + 1) {
+            throw new AssertionError("Too many weather conditions to pack");
+        }
+    }
+
+    private ForecastCodec() {}
+
+    public static void writePeriods(
+            @NonNull ByteArrayOutputStream out,
+            @NonNull List<ForecastPeriod> periods) {
+        writeVarint(out, periods.size());
+
+        long previousStart = 0;
+        long previousDelta = HOUR_SECONDS;
+        int previousOffset = 0;
+        int previousTemperature = 0;
+        for (int i = 0; i < periods.size(); ++i) {
+            final ForecastPeriod period = periods.get(i);
+            final long start = period.getStartTime().toEpochSecond();
+            if (i == 0) {
+                writeVarint(out, start);
+            }
+            else {
+                final long delta = start - previousStart;
+                writeVarint(out, zigzag(delta - previousDelta));
+                previousDelta = delta;
+            }
+            previousStart = start;
+
+            final long end = period.getEndTime().toEpochSecond();
+            writeVarint(out, zigzag(end - start - HOUR_SECONDS));
+
+            final int offset = period.getStartTime().getOffset().getTotalSeconds();
+            writeVarint(out, zigzag(offset - previousOffset));
+            previousOffset = offset;
+
+            out.write(pack(period));
+            if (period.getTemperature().isPresent()) {
+                final int temperature = period.getTemperature().get();
+                writeVarint(out, zigzag(temperature - previousTemperature));
+                previousTemperature = temperature;
+            }
+        }
+    }
+
+    /// Reads periods written by {@link #writePeriods}. Throws IllegalArgumentException if the data
+    /// is truncated or malformed.
+    public static @NonNull List<ForecastPeriod> readPeriods(@NonNull ByteBuffer in) {
+        try {
+            final int count = (int) readVarint(in);
+            if (count < 0 || count > in.remaining()) {
+                throw new IllegalArgumentException("Bad period count " + count);
+            }
+
+            List<ForecastPeriod> periods = new ArrayList<>(count);
+            long previousStart = 0;
+            long previousDelta = HOUR_SECONDS;
+            int previousOffset = 0;
+            int previousTemperature = 0;
+            for (int i = 0; i < count; ++i) {
+                long start;
+                if (i == 0) {
+                    start = readVarint(in);
+                }
+                else {
+                    previousDelta += unzigzag(readVarint(in));
+                    start = previousStart + previousDelta;
+                }
+                previousStart = start;
+
+                final long end = start + HOUR_SECONDS + unzigzag(readVarint(in));
+                previousOffset += (int) unzigzag(readVarint(in));
+                final ZoneOffset offset = ZoneOffset.ofTotalSeconds(previousOffset);
+
+                final int packed = in.get() & 0xff;
+                final int ordinal = packed & CONDITION_MASK;
+                if (ordinal >= CONDITIONS.length) {
+                    throw new IllegalArgumentException("Bad condition " + ordinal);
+                }
+                Optional<Integer> temperature = Optional.empty();
+                if ((packed & TEMPERATURE_FLAG) != 0) {
+                    previousTemperature += (int) unzigzag(readVarint(in));
+                    temperature = Optional.of(previousTemperature);
+                }
+
+                periods.add(new ForecastPeriod(
+                        CONDITIONS[ordinal],
+                        OffsetDateTime.ofInstant(Instant.ofEpochSecond(start), offset),
+                        OffsetDateTime.ofInstant(Instant.ofEpochSecond(end), offset),
+                        temperature,
+                        (packed & DAYTIME_FLAG) != 0));
+            }
+            return periods;
+        } catch (BufferUnderflowException | DateTimeException e) {
+            throw new IllegalArgumentException("Truncated or malformed periods", e);
+        }
+    }
+
+    /// A value that is equal for two periods exactly when they encode identically, given the same
+    /// start time. Used to tell whether a period changed between two fetches.
+    public static long signature(@NonNull ForecastPeriod period) {
+        final long duration =
+                period.getEndTime().toEpochSecond() - period.getStartTime().toEpochSecond();
+        final long offsetMinutes = period.getStartTime().getOffset().getTotalSeconds() / 60;
+        final long temperature = period.getTemperature().orElse(0);
+        return (duration << 40)
+                ^ ((offsetMinutes & 0xffffL) << 24)
+                ^ ((temperature & 0xffffL) << 8)
+                ^ pack(period);
+    }
+
+    private static int pack(@NonNull ForecastPeriod period) {
+        int packed = period.getCondition().ordinal();
+        if (period.isDaytime()) {
+            packed |= DAYTIME_FLAG;
+        }
+        if (period.getTemperature().isPresent()) {
+            packed |= TEMPERATURE_FLAG;
+        }
+        return packed;
+    }
+
+    public static void writeVarint(@NonNull ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static long readVarint(@NonNull ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.get() & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,213 @@
+package org.stevendao.brightsky;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/// Serves the latest forecast to our other apps (which hold the signature-level READ_FORECAST
+/// permission), so that one fetch on the device covers all of them. {@link #METHOD_GET_LATEST}
+/// returns the hourly periods in the {@link ForecastCodec} encoding, in a read-only SharedMemory
+/// region that every caller maps directly; the region is only re-encoded when the forecast
+/// changes. Observers of {@link #CONTENT_URI} are notified whenever a new forecast is published.
+/// A query on the same URI returns the metadata alone, for consumers that just want the text.
+public final class ForecastContentProvider extends ContentProvider {
+    public static final String AUTHORITY = "org.stevendao.brightsky.forecast";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/latest");
+    public static final String READ_PERMISSION =
+            "org.stevendao.brightsky.permission.READ_FORECAST";
+
+    public static final String METHOD_GET_LATEST = "getLatest";
+
+    /// Format of the periods region; bumped whenever the encoding changes incompatibly.
+    public static final int FORMAT_VERSION = 1;
+
+    public static final String KEY_FORMAT = "format";
+    public static final String KEY_PERIODS = "periods";
+    public static final String KEY_FETCH_TIME_MILLIS = "fetch_time_millis";
+    public static final String KEY_LATITUDE = "latitude";
+    public static final String KEY_LONGITUDE = "longitude";
+    public static final String KEY_CITY = "city";
+    public static final String KEY_DESCRIPTION = "description";
+
+    private static final String TAG = ForecastContentProvider.class.getName();
+    private static final String[] COLUMNS = {
+            KEY_FETCH_TIME_MILLIS, KEY_LATITUDE, KEY_LONGITUDE, KEY_CITY, KEY_DESCRIPTION};
+
+    private static @Nullable Forecast sNotified = null;
+
+    /// The forecast that's currently encoded, and its shared region. A replaced region isn't
+    /// closed here, since a reply carrying it may still be on its way out; its cleaner closes it
+    /// once it's unreachable.
+    private @Nullable Forecast mEncoded = null;
+    private @Nullable SharedMemory mMemory = null;
+
+    private final AtomicBoolean mRefreshRequested = new AtomicBoolean();
+
+    /// Tells observers that a forecast was published, unless it's the one they already have
+    /// (e.g. the same forecast re-posted for an alert or a new hour).
+    public static void notifyChanged(@NonNull Context context, @NonNull Forecast forecast) {
+        synchronized (ForecastContentProvider.class) {
+            if (sNotified != null && isSameForecast(sNotified, forecast)) {
+                return;
+            }
+            sNotified = forecast;
+        }
+        context.getContentResolver().notifyChange(CONTENT_URI, null);
+    }
+
+    private static boolean isSameForecast(@NonNull Forecast a, @NonNull Forecast b) {
+        return a.getFetchTimeMillis() == b.getFetchTimeMillis()
+                && Objects.equals(a.getGeographicPoint().getForecastHourlyUrl(),
+                        b.getGeographicPoint().getForecastHourlyUrl())
+                && Objects.equals(a.getGeographicPoint().getCity(),
+                        b.getGeographicPoint().getCity())
+                && Objects.equals(a.getDescription(), b.getDescription());
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public @Nullable Bundle call(
+            @NonNull String method,
+            @Nullable String arg,
+            @Nullable Bundle extras) {
+        // Unlike query(), call() isn't covered by the manifest's permission.
+        getContext().enforceCallingOrSelfPermission(READ_PERMISSION, "Reading the forecast");
+        if (!METHOD_GET_LATEST.equals(method)) {
+            throw new IllegalArgumentException("Unknown method " + method);
+        }
+
+        final Forecast latest = getLatest();
+        if (latest == null) {
+            requestRefresh();
+            return null;
+        }
+
+        final SharedMemory memory;
+        try {
+            memory = getSharedPeriods(latest);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Unable to share the forecast", e);
+            return null;
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(KEY_FORMAT, FORMAT_VERSION);
+        result.putParcelable(KEY_PERIODS, memory);
+        result.putLong(KEY_FETCH_TIME_MILLIS, latest.getFetchTimeMillis());
+        result.putDouble(KEY_LATITUDE, latest.getGeographicPoint().getLatitude());
+        result.putDouble(KEY_LONGITUDE, latest.getGeographicPoint().getLongitude());
+        result.putString(KEY_CITY, latest.getGeographicPoint().getCity());
+        result.putString(KEY_DESCRIPTION, latest.getDescription());
+        return result;
+    }
+
+    @Override
+    public @Nullable Cursor query(
+            @NonNull Uri uri,
+            @Nullable String[] projection,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs,
+            @Nullable String sortOrder) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, 1);
+        final Forecast latest = getLatest();
+        if (latest != null) {
+            cursor.addRow(new Object[] {
+                    latest.getFetchTimeMillis(),
+                    latest.getGeographicPoint().getLatitude(),
+                    latest.getGeographicPoint().getLongitude(),
+                    latest.getGeographicPoint().getCity(),
+                    latest.getDescription()});
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    /// The latest forecast in this process. The process may have just been started for this
+    /// call, in which case there's nothing yet.
+    private static @Nullable Forecast getLatest() {
+        final Forecast latest = ForecastCache.getInstance().getLatest();
+        if (latest == null || latest.getForecastPeriods().isEmpty()) {
+            return null;
+        }
+        return latest;
+    }
+
+    /// Starts one refresh for a caller that found no forecast; observers are notified when it
+    /// lands. Only call() does this, and only once per process, so that another app re-querying
+    /// (say, from its ContentObserver) can't keep restarting refreshes or drive our network use.
+    private void requestRefresh() {
+        if (mRefreshRequested.compareAndSet(false, true)) {
+            Worker.doOnceIfIdle(getContext());
+        }
+    }
+
+    private synchronized @NonNull SharedMemory getSharedPeriods(@NonNull Forecast forecast)
+            throws ErrnoException {
+        if (mMemory != null && mEncoded == forecast) {
+            return mMemory;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ForecastCodec.writePeriods(out, forecast.getForecastPeriods());
+        final byte[] bytes = out.toByteArray();
+
+        SharedMemory memory = SharedMemory.create("forecast", bytes.length);
+        ByteBuffer buffer = memory.mapReadWrite();
+        buffer.put(bytes);
+        SharedMemory.unmap(buffer);
+        memory.setProtect(OsConstants.PROT_READ);
+
+        Log.d(TAG, "Shared " + forecast.getForecastPeriods().size() + " periods in "
+                + bytes.length + " bytes");
+        mMemory = memory;
+        mEncoded = forecast;
+        return memory;
+    }
+
+    @Override
+    public @Nullable String getType(@NonNull Uri uri) {
+        return "vnd.android.cursor.item/vnd." + AUTHORITY;
+    }
+
+    @Override
+    public @Nullable Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("The forecast is read-only");
+    }
+
+    @Override
+    public int delete(
+            @NonNull Uri uri,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("The forecast is read-only");
+    }
+
+    @Override
+    public int update(
+            @NonNull Uri uri,
+            @Nullable ContentValues values,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("The forecast is read-only");
+    }
+}
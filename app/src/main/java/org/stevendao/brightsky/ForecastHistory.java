@@ -0,0 +1,352 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/// An append-only log of every forecast fetched for the displayed location, for looking at how the
+/// forecast for a given hour evolved. Each fetch appends one record holding only the periods that
+/// changed since the last record for the same gridpoint, encoded with {@link ForecastCodec}, so a
+/// typical half-hourly fetch costs a few dozen bytes.
+///
+/// The log is split into segment files under filesDir/history. When the active segment is full a
+/// new one is started, and the oldest segments are deleted to stay within the disk budget. A small
+/// in-memory summary of each segment (its gridpoints and the span of its periods) lets range scans
+/// skip the segments that can't match.
+///
+/// Record layout: varint body length, CRC32 of the body (4 bytes), then the body: varint gridpoint
+/// key, varint fetch time in milliseconds, and the encoded periods. A torn record at the end of
+/// the active segment (e.g. from the process being killed mid-write) is truncated away.
+public final class ForecastHistory {
+    public interface Visitor {
+        /// Called with each revision of each period in a scan, in the order they were fetched.
+        void visit(long fetchTimeMillis, @NonNull ForecastPeriod period);
+    }
+
+    private static final String TAG = ForecastHistory.class.getName();
+    private static final String DIRECTORY = "history";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long SEGMENT_BYTES = 64 * 1024;
+    private static final long BUDGET_BYTES = 1024 * 1024;
+
+    private static ForecastHistory sInstance = null;
+
+    private final @NonNull File mDirectory;
+
+    /// Summaries of the segment files, oldest first; the last one is the active segment.
+    private final @NonNull List<Segment> mSegments = new ArrayList<>();
+
+    /// The last-written signature of each period start time, for each gridpoint key that has been
+    /// appended to since the process started.
+    private final @NonNull Map<Integer, Map<Long, Long>> mLatest = new HashMap<>();
+
+    private boolean mLoaded = false;
+    private long mAppended = 0;
+    private long mPeriodsWritten = 0;
+    private long mPeriodsSkipped = 0;
+
+    public static synchronized @NonNull ForecastHistory getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastHistory(new File(context.getFilesDir(), DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ForecastHistory(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    /// The key identifying a forecast's gridpoint in the log. The hourly forecast URL names the
+    /// gridpoint exactly; its hash is stable across processes and collisions are harmless, since
+    /// scans also filter by time.
+    public static int keyOf(@NonNull GeographicPoint point) {
+        final String url = point.getForecastHourlyUrl();
+        return url != null ? url.hashCode() : 0;
+    }
+
+    /// Appends the periods of a freshly fetched forecast that differ from the last ones logged for
+    /// its gridpoint. Nothing is written if none changed.
+    public synchronized void append(@NonNull Forecast forecast) {
+        if (forecast.getGeographicPoint().getForecastHourlyUrl() == null
+                || forecast.getForecastPeriods().isEmpty()) {
+            return;
+        }
+
+        try {
+            load();
+
+            final int key = keyOf(forecast.getGeographicPoint());
+            final Map<Long, Long> latest = getLatest(key);
+            final List<ForecastPeriod> changed = new ArrayList<>();
+            for (ForecastPeriod period : forecast.getForecastPeriods()) {
+                final long start = period.getStartTime().toEpochSecond();
+                final Long previous = latest.get(start);
+                if (previous == null || previous != ForecastCodec.signature(period)) {
+                    changed.add(period);
+                }
+            }
+            mPeriodsSkipped += forecast.getForecastPeriods().size() - changed.size();
+            if (changed.isEmpty()) {
+                return;
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ForecastCodec.writeVarint(body, key & 0xffffffffL);
+            ForecastCodec.writeVarint(body, forecast.getFetchTimeMillis());
+            ForecastCodec.writePeriods(body, changed);
+            write(key, forecast.getFetchTimeMillis(), changed, body.toByteArray());
+
+            for (ForecastPeriod period : changed) {
+                latest.put(period.getStartTime().toEpochSecond(), ForecastCodec.signature(period));
+            }
+            pruneLatest(latest, forecast);
+            mAppended++;
+            mPeriodsWritten += changed.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to append to forecast history", e);
+        }
+    }
+
+    /// Visits every logged revision of the gridpoint's periods that overlap [fromMillis, toMillis).
+    public synchronized void scan(
+            @NonNull GeographicPoint point,
+            long fromMillis,
+            long toMillis,
+            @NonNull Visitor visitor) {
+        final int key = keyOf(point);
+        final long fromSeconds = Math.floorDiv(fromMillis, 1000);
+        final long toSeconds = Math.floorDiv(toMillis, 1000);
+        try {
+            load();
+            for (Segment segment : mSegments) {
+                if (!segment.mKeys.contains(key)
+                        || segment.mMaxEndSeconds <= fromSeconds
+                        || segment.mMinStartSeconds >= toSeconds) {
+                    continue;
+                }
+                readSegment(segment.mFile, (recordKey, fetchTimeMillis, periods) -> {
+                    if (recordKey != key) {
+                        return;
+                    }
+                    for (ForecastPeriod period : periods) {
+                        if (period.getEndTime().toEpochSecond() > fromSeconds
+                                && period.getStartTime().toEpochSecond() < toSeconds) {
+                            visitor.visit(fetchTimeMillis, period);
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to scan forecast history", e);
+        }
+    }
+
+    public synchronized void dump(@NonNull PrintWriter writer) {
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            bytes += segment.mFile.length();
+        }
+        writer.println(String.format(Locale.ROOT,
+                "History: %d segments, %d bytes; %d records appended, %d periods written, "
+                        + "%d unchanged periods skipped",
+                mSegments.size(), bytes, mAppended, mPeriodsWritten, mPeriodsSkipped));
+    }
+
+    private void write(
+            int key,
+            long fetchTimeMillis,
+            @NonNull List<ForecastPeriod> periods,
+            @NonNull byte[] body) throws IOException {
+        Segment active = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (active == null || active.mFile.length() >= SEGMENT_BYTES) {
+            final long sequence = active == null ? 0 : active.mSequence + 1;
+            active = new Segment(sequence, new File(mDirectory,
+                    String.format(Locale.ROOT, "%016x%s", sequence, SEGMENT_SUFFIX)));
+            mSegments.add(active);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 8);
+        ForecastCodec.writeVarint(record, body.length);
+        final long checksum = crc.getValue();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            record.write((int) (checksum >>> shift));
+        }
+        record.write(body);
+
+        try (FileOutputStream out = new FileOutputStream(active.mFile, /*append=*/ true)) {
+            record.writeTo(out);
+        }
+        active.add(key, fetchTimeMillis, periods);
+        enforceBudget();
+    }
+
+    /// Deletes the oldest segments (never the active one) until the log fits in its budget.
+    private void enforceBudget() {
+        long total = 0;
+        for (Segment segment : mSegments) {
+            total += segment.mFile.length();
+        }
+        while (total > BUDGET_BYTES && mSegments.size() > 1) {
+            final Segment oldest = mSegments.remove(0);
+            total -= oldest.mFile.length();
+            if (!oldest.mFile.delete()) {
+                Log.w(TAG, "Unable to delete " + oldest.mFile);
+            }
+        }
+    }
+
+    /// Reads the segment summaries the first time the log is used in this process.
+    private void load() throws IOException {
+        if (mLoaded) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+
+        File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; ++i) {
+            final File file = files[i];
+            final String name = file.getName();
+            final Segment segment;
+            try {
+                segment = new Segment(
+                        Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()),
+                                16),
+                        file);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            // Only the active segment can end in a torn record; older ones were complete when
+            // the next segment was started.
+            final long validBytes = readSegment(file, segment::add);
+            if (validBytes < file.length() && i == files.length - 1) {
+                Log.w(TAG, "Truncating torn record in " + file);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validBytes);
+                }
+            }
+            mSegments.add(segment);
+        }
+        mLoaded = true;
+    }
+
+    /// The last-written signatures for a gridpoint, rebuilt from the log the first time it's
+    /// appended to in this process.
+    private @NonNull Map<Long, Long> getLatest(int key) throws IOException {
+        Map<Long, Long> latest = mLatest.get(key);
+        if (latest == null) {
+            final Map<Long, Long> rebuilt = new HashMap<>();
+            for (Segment segment : mSegments) {
+                if (segment.mKeys.contains(key)) {
+                    readSegment(segment.mFile, (recordKey, fetchTimeMillis, periods) -> {
+                        if (recordKey == key) {
+                            for (ForecastPeriod period : periods) {
+                                rebuilt.put(period.getStartTime().toEpochSecond(),
+                                        ForecastCodec.signature(period));
+                            }
+                        }
+                    });
+                }
+            }
+            latest = rebuilt;
+            mLatest.put(key, latest);
+        }
+        return latest;
+    }
+
+    /// Forgets signatures of periods that have already started, so that the map stays the size of
+    /// one forecast.
+    private static void pruneLatest(@NonNull Map<Long, Long> latest, @NonNull Forecast forecast) {
+        final long firstStart =
+                forecast.getForecastPeriods().get(0).getStartTime().toEpochSecond();
+        latest.keySet().removeIf(start -> start < firstStart);
+    }
+
+    private interface RecordVisitor {
+        void visit(int key, long fetchTimeMillis, @NonNull List<ForecastPeriod> periods);
+    }
+
+    /// Reads the segment's records in order, and returns the length of its valid prefix.
+    private static long readSegment(
+            @NonNull File file,
+            @NonNull RecordVisitor visitor) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        CRC32 crc = new CRC32();
+        while (buffer.hasRemaining()) {
+            final int recordStart = buffer.position();
+            try {
+                final int length = (int) ForecastCodec.readVarint(buffer);
+                if (length < 0 || buffer.remaining() < 4 + length) {
+                    return recordStart;
+                }
+                final long checksum = buffer.getInt() & 0xffffffffL;
+                crc.reset();
+                crc.update(buffer.array(), buffer.position(), length);
+                if (crc.getValue() != checksum) {
+                    return recordStart;
+                }
+
+                final ByteBuffer body = (ByteBuffer) buffer.slice().limit(length);
+                buffer.position(buffer.position() + length);
+                final int key = (int) ForecastCodec.readVarint(body);
+                final long fetchTimeMillis = ForecastCodec.readVarint(body);
+                visitor.visit(key, fetchTimeMillis, ForecastCodec.readPeriods(body));
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                return recordStart;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static final class Segment {
+        private final long mSequence;
+        private final @NonNull File mFile;
+        private final @NonNull Set<Integer> mKeys = new HashSet<>();
+        private long mMinStartSeconds = Long.MAX_VALUE;
+        private long mMaxEndSeconds = Long.MIN_VALUE;
+
+        private Segment(long sequence, @NonNull File file) {
+            mSequence = sequence;
+            mFile = file;
+        }
+
+        private void add(int key, long fetchTimeMillis, @NonNull List<ForecastPeriod> periods) {
+            mKeys.add(key);
+            for (ForecastPeriod period : periods) {
+                mMinStartSeconds =
+                        Math.min(mMinStartSeconds, period.getStartTime().toEpochSecond());
+                mMaxEndSeconds = Math.max(mMaxEndSeconds, period.getEndTime().toEpochSecond());
+            }
+        }
+    }
+}
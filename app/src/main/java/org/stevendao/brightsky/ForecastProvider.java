@@ -0,0 +1,80 @@
+package org.stevendao.brightsky;
+
+import android.location.Location;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/// A source of {@link Forecast}s for a location. api.weather.gov is the default; other providers
+/// stand in when it's slow or down (see {@link FallbackForecastProvider}).
+public interface ForecastProvider {
+    /// What a refresh wants from a provider, beyond the location.
+    final class Query {
+        private final boolean mHourlyOnly;
+        private final boolean mReuseGridpoint;
+        private final boolean mResolveCity;
+        private final @Nullable Forecast.HourlyListener mHourlyListener;
+        private final @Nullable Forecast.HourlyListener mLateListener;
+        private final @Nullable Forecast.HourlyListener mCityListener;
+
+        /// The hourly listener gets a partial forecast (without the description) as soon as one is
+        /// available; the late listener gets a complete forecast that only arrived after the
+        /// fetch had already returned another provider's; the city listener gets a forecast
+        /// already handed out again, with a better place name that was only resolved afterwards.
+        public Query(
+                boolean hourlyOnly,
+                boolean reuseGridpoint,
+                boolean resolveCity,
+                @Nullable Forecast.HourlyListener hourlyListener,
+                @Nullable Forecast.HourlyListener lateListener,
+                @Nullable Forecast.HourlyListener cityListener) {
+            mHourlyOnly = hourlyOnly;
+            mReuseGridpoint = reuseGridpoint;
+            mResolveCity = resolveCity;
+            mHourlyListener = hourlyListener;
+            mLateListener = lateListener;
+            mCityListener = cityListener;
+        }
+
+        /// The same query with a different hourly listener.
+        public @NonNull Query withHourlyListener(
+                @Nullable Forecast.HourlyListener hourlyListener) {
+            return new Query(mHourlyOnly, mReuseGridpoint, mResolveCity,
+                    hourlyListener, mLateListener, mCityListener);
+        }
+
+        /// Skip the daily forecast if a recent enough description is cached.
+        public boolean isHourlyOnly() {
+            return mHourlyOnly;
+        }
+
+        /// Skip looking up the gridpoint if a cached forecast already covers the location.
+        public boolean getReuseGridpoint() {
+            return mReuseGridpoint;
+        }
+
+        /// Look up a better place name (with the Geocoder) if the NWS one is far off.
+        public boolean getResolveCity() {
+            return mResolveCity;
+        }
+
+        public @Nullable Forecast.HourlyListener getHourlyListener() {
+            return mHourlyListener;
+        }
+
+        public @Nullable Forecast.HourlyListener getLateListener() {
+            return mLateListener;
+        }
+
+        public @Nullable Forecast.HourlyListener getCityListener() {
+            return mCityListener;
+        }
+    }
+
+    /// A short name for logs and diagnostics.
+    @NonNull String getName();
+
+    /// Blocks until the provider has a forecast with periods for the location, or returns null if
+    /// it can't get one.
+    @Nullable Forecast fetch(@NonNull Location location, @NonNull Query query);
+}
@@ -7,9 +7,9 @@ import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.RequestFuture;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -17,6 +17,7 @@ import org.json.JSONObject;
 
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class GeographicPoint implements Parcelable {
     public static final Parcelable.Creator<GeographicPoint> CREATOR
@@ -35,11 +36,12 @@ public class GeographicPoint implements Parcelable {
     private final @Nullable String mCity;
     private final @Nullable String mForecastUrl;
     private final @Nullable String mForecastHourlyUrl;
+    private final @Nullable String mStationsUrl;
+    private final boolean mCityApproximate;
 
     public static @NonNull GeographicPoint request(
             @Nullable Location location,
-            @NonNull RequestQueue volleyQueue,
-            @Nullable Context context) {
+            @NonNull RequestQueue volleyQueue) {
         if (location == null) {
             return new GeographicPoint();
         }
@@ -49,10 +51,17 @@ public class GeographicPoint implements Parcelable {
                 "https://api.weather.gov/points/%.4f,%.4f",
                 location.getLatitude(),
                 location.getLongitude());
-        RequestFuture<JSONObject> future = Utils.requestJsonObject(volleyQueue, url);
+        final long start = Metrics.start();
+        Future<JSONObject> future =
+                Utils.requestJsonObject(volleyQueue, url, Metrics.Stage.POINTS);
         try {
             JSONObject jsonObject = future.get();
-            return new GeographicPoint(jsonObject, context);
+            Metrics.getInstance().record(Metrics.Stage.POINTS, start);
+
+            final long parseStart = Metrics.start();
+            GeographicPoint point = new GeographicPoint(jsonObject);
+            Metrics.getInstance().record(Metrics.Stage.PARSE, parseStart);
+            return point;
         } catch (InterruptedException | ExecutionException e) {
             return new GeographicPoint();
         }
@@ -64,14 +73,19 @@ public class GeographicPoint implements Parcelable {
         mCity = null;
         mForecastUrl = null;
         mForecastHourlyUrl = null;
+        mStationsUrl = null;
+        mCityApproximate = false;
     }
 
-    private GeographicPoint(@NonNull JSONObject jsonObject, @Nullable Context context) {
+    @VisibleForTesting
+    GeographicPoint(@NonNull JSONObject jsonObject) {
         double latitude;
         double longitude;
         String city;
         String forecastUrl;
         String forecastHourlyUrl;
+        String stationsUrl;
+        boolean cityApproximate;
 
         try {
             JSONArray coordinates = jsonObject
@@ -92,22 +106,20 @@ public class GeographicPoint implements Parcelable {
                     .getDouble("value");
             forecastUrl = properties.getString("forecast");
             forecastHourlyUrl = properties.getString("forecastHourly");
+            stationsUrl = properties.optString("observationStations", null);
 
             // Sometimes the relativeLocation provided by api.weather.gov is really far away. If
-            // it's more than 1000m (1km) away, then use the place name from the Geocoder API
-            // instead.
-            if (distance > 1000.0 && context != null) {
-                String placeName = Utils.getPlaceNameFromLatLong(context, latitude, longitude);
-                if (placeName != null) {
-                    city = placeName;
-                }
-            }
+            // it's more than 1000m (1km) away, then the place name from the Geocoder API should be
+            // used instead; that's resolved separately so it doesn't hold up the forecast.
+            cityApproximate = distance > 1000.0;
         } catch (JSONException ignored) {
             latitude = Double.MAX_VALUE;
             longitude = Double.MAX_VALUE;
             city = null;
             forecastUrl = null;
             forecastHourlyUrl = null;
+            stationsUrl = null;
+            cityApproximate = false;
         }
 
         mLatitude = latitude;
@@ -115,6 +127,36 @@ public class GeographicPoint implements Parcelable {
         mCity = city;
         mForecastUrl = forecastUrl;
         mForecastHourlyUrl = forecastHourlyUrl;
+        mStationsUrl = stationsUrl;
+        mCityApproximate = cityApproximate;
+    }
+
+    private GeographicPoint(@NonNull GeographicPoint other, @NonNull String city) {
+        mLatitude = other.mLatitude;
+        mLongitude = other.mLongitude;
+        mCity = city;
+        mForecastUrl = other.mForecastUrl;
+        mForecastHourlyUrl = other.mForecastHourlyUrl;
+        mStationsUrl = other.mStationsUrl;
+        mCityApproximate = false;
+    }
+
+    /// The same point with a better place name, e.g. from the Geocoder.
+    public @NonNull GeographicPoint withCity(@NonNull String city) {
+        return new GeographicPoint(this, city);
+    }
+
+    /// Looks up a better place name for a point whose NWS city is far away, blocking on the
+    /// Geocoder. Returns the point unchanged if it doesn't need one or none is found.
+    public static @NonNull GeographicPoint resolveCity(
+            @NonNull Context context,
+            @NonNull GeographicPoint point) {
+        if (!point.isCityApproximate()) {
+            return point;
+        }
+        final String city =
+                Utils.getPlaceNameFromLatLong(context, point.getLatitude(), point.getLongitude());
+        return city != null ? point.withCity(city) : point;
     }
 
     public double getLatitude() {
@@ -137,12 +179,25 @@ public class GeographicPoint implements Parcelable {
         return mForecastHourlyUrl;
     }
 
+    /// True if the city is the NWS's nearest named place but more than 1 km away, so a better name
+    /// should be looked up with {@link #resolveCity}.
+    public boolean isCityApproximate() {
+        return mCityApproximate;
+    }
+
+    /// The gridpoint's list of nearby observation stations, which also identifies the gridpoint.
+    public @Nullable String getStationsUrl() {
+        return mStationsUrl;
+    }
+
     private GeographicPoint(Parcel in) {
         mLatitude = in.readDouble();
         mLongitude = in.readDouble();
         mCity = in.readString();
         mForecastUrl = in.readString();
         mForecastHourlyUrl = in.readString();
+        mStationsUrl = in.readString();
+        mCityApproximate = in.readInt() != 0;
     }
 
     @Override
@@ -157,5 +212,7 @@ public class GeographicPoint implements Parcelable {
         dest.writeString(mCity);
         dest.writeString(mForecastUrl);
         dest.writeString(mForecastHourlyUrl);
+        dest.writeString(mStationsUrl);
+        dest.writeInt(mCityApproximate ? 1 : 0);
     }
 }
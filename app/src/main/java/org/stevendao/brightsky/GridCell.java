@@ -0,0 +1,151 @@
+package org.stevendao.brightsky;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/// The polygon covered by a single NWS gridpoint, as reported in the "geometry" of a forecast.
+public class GridCell implements Parcelable {
+    public static final Parcelable.Creator<GridCell> CREATOR
+            = new Parcelable.Creator<GridCell>() {
+        public GridCell createFromParcel(Parcel in) {
+            return new GridCell(in);
+        }
+
+        public GridCell[] newArray(int size) {
+            return new GridCell[size];
+        }
+    };
+
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+
+    private final @NonNull double[] mLatitudes;
+    private final @NonNull double[] mLongitudes;
+
+    /// Parses the outer ring of the polygon from a forecast's GeoJSON geometry. Older responses
+    /// wrap the polygon in a GeometryCollection, so look inside one of those too.
+    public static @Nullable GridCell fromGeometry(@Nullable JSONObject geometry) {
+        if (geometry == null) {
+            return null;
+        }
+
+        try {
+            final String type = geometry.getString("type");
+            if (type.equals("GeometryCollection")) {
+                JSONArray geometries = geometry.getJSONArray("geometries");
+                for (int i = 0; i < geometries.length(); ++i) {
+                    GridCell cell = fromGeometry(geometries.getJSONObject(i));
+                    if (cell != null) {
+                        return cell;
+                    }
+                }
+                return null;
+            }
+            else if (!type.equals("Polygon")) {
+                return null;
+            }
+
+            JSONArray ring = geometry.getJSONArray("coordinates").getJSONArray(0);
+            if (ring.length() < 3) {
+                return null;
+            }
+
+            double[] latitudes = new double[ring.length()];
+            double[] longitudes = new double[ring.length()];
+            for (int i = 0; i < ring.length(); ++i) {
+                JSONArray vertex = ring.getJSONArray(i);
+                latitudes[i] = vertex.getDouble(1);
+                longitudes[i] = vertex.getDouble(0);
+            }
+            return new GridCell(latitudes, longitudes);
+        } catch (JSONException ignored) {
+            return null;
+        }
+    }
+
+    private GridCell(@NonNull double[] latitudes, @NonNull double[] longitudes) {
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+    }
+
+    /// Even-odd ray casting; the cells are a few kilometers wide, so treating degrees as planar
+    /// coordinates is accurate enough.
+    public boolean contains(double latitude, double longitude) {
+        boolean inside = false;
+        for (int i = 0, j = mLatitudes.length - 1; i < mLatitudes.length; j = i++) {
+            if ((mLatitudes[i] > latitude) != (mLatitudes[j] > latitude)) {
+                final double crossing = mLongitudes[i]
+                        + (latitude - mLatitudes[i])
+                        * (mLongitudes[j] - mLongitudes[i])
+                        / (mLatitudes[j] - mLatitudes[i]);
+                if (longitude < crossing) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /// The distance from a point (inside or outside) to the nearest edge of the cell, in the
+    /// same planar approximation, scaled to meters around the point.
+    public double distanceToEdgeMeters(double latitude, double longitude) {
+        final double metersPerDegreeLongitude =
+                METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(latitude));
+        double nearest = Double.MAX_VALUE;
+        for (int i = 0, j = mLatitudes.length - 1; i < mLatitudes.length; j = i++) {
+            final double ax = (mLongitudes[j] - longitude) * metersPerDegreeLongitude;
+            final double ay = (mLatitudes[j] - latitude) * METERS_PER_DEGREE_LATITUDE;
+            final double bx = (mLongitudes[i] - longitude) * metersPerDegreeLongitude;
+            final double by = (mLatitudes[i] - latitude) * METERS_PER_DEGREE_LATITUDE;
+            final double dx = bx - ax;
+            final double dy = by - ay;
+            final double lengthSquared = dx * dx + dy * dy;
+            final double t = lengthSquared == 0
+                    ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared));
+            nearest = Math.min(nearest, Math.hypot(ax + t * dx, ay + t * dy));
+        }
+        return nearest;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof GridCell)) {
+            return false;
+        }
+        GridCell other = (GridCell) o;
+        return Arrays.equals(mLatitudes, other.mLatitudes)
+                && Arrays.equals(mLongitudes, other.mLongitudes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(mLatitudes) + Arrays.hashCode(mLongitudes);
+    }
+
+    private GridCell(Parcel in) {
+        mLatitudes = in.createDoubleArray();
+        mLongitudes = in.createDoubleArray();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeDoubleArray(mLatitudes);
+        dest.writeDoubleArray(mLongitudes);
+    }
+}
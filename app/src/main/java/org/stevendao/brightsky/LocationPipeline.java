@@ -0,0 +1,318 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/// Turns raw location updates into gridpoint changes. Fixes are delivered in batches (so the
+/// provider can hold them until the device is awake anyway), and a fix that's still inside the
+/// gridpoint cell of the forecast the notification shows is dropped without touching the stored
+/// location or refreshing. A fix whose accuracy circle straddles the cell's edge is held back in
+/// the hope that the next one will tell, but only for a couple of fixes or half an hour; after
+/// that, the latest one is placed by its center. How often fixes are requested follows how fast
+/// the device has been moving: a device sitting on a desk gets a fix every 15 minutes, like before
+/// batching, while one in a car gets a fix every couple of minutes. No batch is held for longer
+/// than 15 minutes, so leaving the cell is noticed at least as quickly as it was before.
+public final class LocationPipeline {
+    public interface Listener {
+        /// Called on the main thread with a fix that's outside the displayed gridpoint's cell (or
+        /// the first fix, if there's no forecast yet).
+        void onGridpointChanged(@NonNull Location location);
+    }
+
+    /// Movement classes, from the fastest speed seen in the latest batch.
+    private enum Movement {
+        STATIONARY(15, 15, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY),
+        WALKING(5, 15, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY),
+        DRIVING(2, 10, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY),
+        ;
+
+        private final long mIntervalMillis;
+        private final long mMaxWaitMillis;
+        private final int mPriority;
+
+        Movement(int intervalMins, int maxWaitMins, int priority) {
+            mIntervalMillis = TimeUnit.MINUTES.toMillis(intervalMins);
+            mMaxWaitMillis = TimeUnit.MINUTES.toMillis(maxWaitMins);
+            mPriority = priority;
+        }
+
+        private static @NonNull Movement fromSpeed(float metersPerSecond) {
+            if (metersPerSecond >= DRIVING_SPEED_MPS) {
+                return DRIVING;
+            }
+            else if (metersPerSecond >= WALKING_SPEED_MPS) {
+                return WALKING;
+            }
+            return STATIONARY;
+        }
+    }
+
+    private static final String TAG = LocationPipeline.class.getName();
+    private static final float WALKING_SPEED_MPS = 0.5f;
+    private static final float DRIVING_SPEED_MPS = 5f;
+
+    /// Gridpoint cells are about 2.5 km across, so smaller moves can't matter much.
+    private static final float SMALLEST_DISPLACEMENT_M = 500f;
+
+    /// How many fixes in a row may straddle the cell's edge before the next one is placed by its
+    /// center. Wi-Fi and cell fixes can be off by a kilometer or more, so a device that stops near
+    /// an edge might never get a fix that's clearly on one side.
+    private static final int MAX_AMBIGUOUS_FIXES = 2;
+
+    /// How long a straddling fix may wait for a better one. Stationary devices barely get new
+    /// fixes, so this is what places the last one.
+    private static final long AMBIGUITY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /// Where a fix falls relative to the displayed gridpoint's cell.
+    @VisibleForTesting
+    enum Placement {
+        INSIDE,
+        AMBIGUOUS,
+        OUTSIDE,
+    }
+
+    /// Places fixes relative to the displayed cell, holding back at most a few in a row that
+    /// straddle its edge.
+    @VisibleForTesting
+    static final class CellFilter {
+        private @Nullable GridCell mCell = null;
+        private @Nullable Location mPending = null;
+        private int mAmbiguousInARow = 0;
+
+        /// Returns whether the cell changed; re-posting the same cell keeps any straddling fix.
+        boolean setCell(@Nullable GridCell cell) {
+            if (Objects.equals(mCell, cell)) {
+                return false;
+            }
+            mCell = cell;
+            reset();
+            return true;
+        }
+
+        /// Forgets any straddling fixes.
+        void reset() {
+            mPending = null;
+            mAmbiguousInARow = 0;
+        }
+
+        boolean hasCell() {
+            return mCell != null;
+        }
+
+        @NonNull Placement place(@NonNull Location fix) {
+            if (mCell == null) {
+                return Placement.OUTSIDE;
+            }
+
+            final double latitude = fix.getLatitude();
+            final double longitude = fix.getLongitude();
+            if (mAmbiguousInARow < MAX_AMBIGUOUS_FIXES
+                    && fix.hasAccuracy()
+                    && fix.getAccuracy() >= mCell.distanceToEdgeMeters(latitude, longitude)) {
+                mAmbiguousInARow++;
+                mPending = fix;
+                return Placement.AMBIGUOUS;
+            }
+
+            reset();
+            return mCell.contains(latitude, longitude) ? Placement.INSIDE : Placement.OUTSIDE;
+        }
+
+        /// Stops waiting on the latest straddling fix and places it by its center. Returns the fix
+        /// if that puts it outside the cell, or null if it's inside or there's none pending.
+        @Nullable Location expire() {
+            final Location pending = mPending;
+            reset();
+            if (pending == null || mCell == null
+                    || mCell.contains(pending.getLatitude(), pending.getLongitude())) {
+                return null;
+            }
+            return pending;
+        }
+    }
+
+    private final @NonNull Context mContext;
+    private final @NonNull Prefetcher mPrefetcher;
+    private final @NonNull Listener mListener;
+    private final @NonNull FusedLocationProviderClient mProvider;
+    private @Nullable Movement mMovement = null;
+    private @Nullable Location mLastFix = null;
+    private final @NonNull CellFilter mFilter = new CellFilter();
+    private final @NonNull Handler mHandler = new Handler(Looper.getMainLooper());
+    private final @NonNull Runnable mExpireAmbiguity = this::onAmbiguityTimeout;
+
+    private long mBatches = 0;
+    private long mFixes = 0;
+    private long mFiltered = 0;
+    private long mAmbiguous = 0;
+    private long mAmbiguityTimeouts = 0;
+    private long mGridpointChanges = 0;
+    private long mRequestChanges = 0;
+
+    private final LocationCallback mCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            onBatch(locationResult);
+        }
+    };
+
+    public LocationPipeline(
+            @NonNull Context context,
+            @NonNull Prefetcher prefetcher,
+            @NonNull Listener listener) {
+        mContext = context.getApplicationContext();
+        mPrefetcher = prefetcher;
+        mListener = listener;
+        mProvider = LocationServices.getFusedLocationProviderClient(mContext);
+    }
+
+    /// Starts (or keeps) receiving updates. Until movement has been observed, the device is
+    /// assumed to be stationary.
+    public void start() {
+        request(mMovement != null ? mMovement : Movement.STATIONARY);
+    }
+
+    public void stop() {
+        mProvider.removeLocationUpdates(mCallback);
+        mMovement = null;
+        mLastFix = null;
+        mHandler.removeCallbacks(mExpireAmbiguity);
+        mFilter.reset();
+        mPrefetcher.clear();
+    }
+
+    /// The cell of the forecast that's on screen, or null if nothing is; fixes inside it are
+    /// dropped.
+    public void setDisplayedCell(@Nullable GridCell cell) {
+        if (mFilter.setCell(cell)) {
+            mHandler.removeCallbacks(mExpireAmbiguity);
+        }
+    }
+
+    private void request(@NonNull Movement movement) {
+        LocationRequest request = LocationRequest.create()
+                .setInterval(movement.mIntervalMillis)
+                .setFastestInterval(Math.min(
+                        movement.mIntervalMillis, TimeUnit.MINUTES.toMillis(1)))
+                .setMaxWaitTime(movement.mMaxWaitMillis)
+                .setSmallestDisplacement(SMALLEST_DISPLACEMENT_M)
+                .setPriority(movement.mPriority);
+        try {
+            // Re-requesting with the same callback replaces the previous request.
+            mProvider.requestLocationUpdates(request, mCallback, Looper.getMainLooper());
+            if (mMovement != movement) {
+                Log.d(TAG, "Requesting " + movement + " location updates");
+                mRequestChanges++;
+            }
+            mMovement = movement;
+        }
+        catch (SecurityException ignored) {
+            Log.w(TAG, "Unable to request location updates");
+        }
+    }
+
+    private void onBatch(@NonNull LocationResult result) {
+        final List<Location> locations = result.getLocations();
+        final Location last = result.getLastLocation();
+        if (last == null) {
+            Log.d(TAG, "Location retrieval unsuccessful");
+            return;
+        }
+        mBatches++;
+        mFixes += locations.size();
+
+        // The prefetcher wants every fix, since it extrapolates the path.
+        mPrefetcher.onLocationResult(result);
+
+        // Adapt to the fastest movement in this batch, counting from the last fix of the
+        // previous batch.
+        float speed = 0f;
+        Location previous = mLastFix;
+        for (Location location : locations) {
+            speed = Math.max(speed, speedBetween(previous, location));
+            previous = location;
+        }
+        mLastFix = last;
+        final Movement movement = Movement.fromSpeed(speed);
+        if (movement != mMovement) {
+            request(movement);
+        }
+
+        // A fix inside the displayed gridpoint's cell wouldn't change the forecast. Nor can a fix
+        // that might be on either side of the cell's edge decide anything; wait a little for a
+        // better one.
+        if (mFilter.hasCell() && Utils.getCurrentLocation(mContext) != null) {
+            switch (mFilter.place(last)) {
+                case AMBIGUOUS:
+                    mAmbiguous++;
+                    if (!mHandler.hasCallbacks(mExpireAmbiguity)) {
+                        mHandler.postDelayed(mExpireAmbiguity, AMBIGUITY_TIMEOUT_MILLIS);
+                    }
+                    return;
+                case INSIDE:
+                    mHandler.removeCallbacks(mExpireAmbiguity);
+                    mFiltered++;
+                    return;
+                case OUTSIDE:
+                    mHandler.removeCallbacks(mExpireAmbiguity);
+                    break;
+            }
+        }
+
+        mGridpointChanges++;
+        mListener.onGridpointChanged(last);
+    }
+
+    /// No fix has settled which side of the edge the device is on; go by the latest one's center.
+    private void onAmbiguityTimeout() {
+        mAmbiguityTimeouts++;
+        final Location pending = mFilter.expire();
+        if (pending != null) {
+            mGridpointChanges++;
+            mListener.onGridpointChanged(pending);
+        }
+    }
+
+    private static float speedBetween(@Nullable Location from, @NonNull Location to) {
+        if (to.hasSpeed()) {
+            return to.getSpeed();
+        }
+        if (from == null) {
+            return 0f;
+        }
+        final long elapsedNanos = to.getElapsedRealtimeNanos() - from.getElapsedRealtimeNanos();
+        if (elapsedNanos <= 0) {
+            return 0f;
+        }
+        return from.distanceTo(to) / (elapsedNanos / 1e9f);
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format(Locale.ROOT,
+                "Location: %s; %d batches, %d fixes, %d inside the current cell, "
+                        + "%d too close to its edge (%d timed out), %d gridpoint changes, "
+                        + "%d request changes",
+                mMovement == null ? "off" : mMovement.toString(),
+                mBatches, mFixes, mFiltered, mAmbiguous, mAmbiguityTimeouts, mGridpointChanges,
+                mRequestChanges));
+    }
+}
@@ -1,10 +1,15 @@
 package org.stevendao.brightsky;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.fragment.app.Fragment;
+import androidx.preference.Preference;
+import androidx.preference.PreferenceFragmentCompat;
 
 import android.os.Bundle;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity
+        extends AppCompatActivity
+        implements PreferenceFragmentCompat.OnPreferenceStartFragmentCallback {
     @Override
     protected void onStart() {
         super.onStart();
@@ -20,4 +25,19 @@ public class MainActivity extends AppCompatActivity {
                 .replace(R.id.settings_container, new PreferenceFragment())
                 .commit();
     }
+
+    @Override
+    public boolean onPreferenceStartFragment(
+            PreferenceFragmentCompat caller, Preference pref) {
+        Fragment fragment = getSupportFragmentManager()
+                .getFragmentFactory()
+                .instantiate(getClassLoader(), pref.getFragment());
+        fragment.setArguments(pref.getExtras());
+        getSupportFragmentManager()
+                .beginTransaction()
+                .replace(R.id.settings_container, fragment)
+                .addToBackStack(null)
+                .commit();
+        return true;
+    }
 }
\ No newline at end of file
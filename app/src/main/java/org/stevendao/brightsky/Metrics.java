@@ -0,0 +1,332 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
+
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/// Process-wide timers and counters for each stage of a refresh. Everything is kept in fixed-size
+/// ring buffers so that the always-on process doesn't grow no matter how long it runs.
+public final class Metrics {
+    public enum Stage {
+        LOCATION(R.string.stage_location),
+        GEOCODE(R.string.stage_geocode),
+        POINTS(R.string.stage_points),
+        FORECAST(R.string.stage_forecast),
+        FORECAST_HOURLY(R.string.stage_forecast_hourly),
+        PARSE(R.string.stage_parse),
+        RENDER_TIMELINE(R.string.stage_render_timeline),
+        RENDER_ICON(R.string.stage_render_icon),
+        START_FOREGROUND(R.string.stage_start_foreground),
+        ALERTS(R.string.stage_alerts),
+        STATIONS(R.string.stage_stations),
+        OBSERVATION(R.string.stage_observation),
+        USER_REFRESH(R.string.stage_user_refresh),
+        ;
+
+        private final @StringRes int mDescriptionId;
+
+        Stage(@StringRes int descriptionId) {
+            mDescriptionId = descriptionId;
+        }
+
+        public @StringRes int getDescriptionId() {
+            return mDescriptionId;
+        }
+    }
+
+    public static final String CACHE_FORECAST = "forecast";
+    public static final String CACHE_GEOCODE = "geocode";
+    public static final String CACHE_IN_FLIGHT = "in-flight";
+
+    private static final int RING_SIZE = 64;
+    private static final int TRANSFER_DAYS = 7;
+
+    /// Upper bounds (exclusive, in milliseconds) of the histogram buckets; the last bucket is
+    /// unbounded.
+    private static final long[] BUCKET_BOUNDS_MS = {1, 4, 16, 64, 256, 1024, 4096};
+
+    private static Metrics sInstance = null;
+
+    private final StageStats[] mStages = new StageStats[Stage.values().length];
+    private final Map<String, CacheStats> mCaches = new LinkedHashMap<>();
+
+    /// Bytes transferred on each of the last few days, in local time; the oldest day is dropped
+    /// once a new one starts.
+    private final TreeMap<LocalDate, TransferStats> mDays = new TreeMap<>();
+
+    /// Start times of stages that begin and end on different threads, by stage ordinal; 0 if the
+    /// stage isn't in progress.
+    private final long[] mPending = new long[Stage.values().length];
+
+    public static synchronized @NonNull Metrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new Metrics();
+        }
+        return sInstance;
+    }
+
+    private Metrics() {
+        for (int i = 0; i < mStages.length; ++i) {
+            mStages[i] = new StageStats();
+        }
+    }
+
+    /// Returns a timestamp to pass to {@link #record(Stage, long)} once the stage is done.
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public void record(@NonNull Stage stage, long startNanos) {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final StageStats stats = mStages[stage.ordinal()];
+        synchronized (stats) {
+            stats.addLatency(elapsedNanos);
+        }
+    }
+
+    /// Starts timing a stage that will be finished elsewhere with {@link #finish(Stage)}. Starting
+    /// it again before it finishes restarts the timer.
+    public synchronized void begin(@NonNull Stage stage) {
+        mPending[stage.ordinal()] = System.nanoTime();
+    }
+
+    /// Records a stage started with {@link #begin(Stage)}, if it's in progress.
+    public void finish(@NonNull Stage stage) {
+        long start;
+        synchronized (this) {
+            start = mPending[stage.ordinal()];
+            mPending[stage.ordinal()] = 0;
+        }
+        if (start != 0) {
+            record(stage, start);
+        }
+    }
+
+    /// Records one response body: its size as received (0 if it didn't come over the network) and
+    /// its size after decompression.
+    public void recordTransfer(@NonNull Stage stage, long wireBytes, long decodedBytes) {
+        final StageStats stats = mStages[stage.ordinal()];
+        synchronized (stats) {
+            stats.addBytes(wireBytes, decodedBytes);
+        }
+
+        synchronized (mDays) {
+            final LocalDate today = LocalDate.now(Utils.getClock());
+            TransferStats day = mDays.get(today);
+            if (day == null) {
+                day = new TransferStats();
+                mDays.put(today, day);
+                while (mDays.size() > TRANSFER_DAYS) {
+                    mDays.pollFirstEntry();
+                }
+            }
+            day.add(wireBytes, decodedBytes);
+        }
+    }
+
+    /// Bytes received over the network today, for budgets that care about data use.
+    public long getWireBytesToday() {
+        synchronized (mDays) {
+            final TransferStats day = mDays.get(LocalDate.now(Utils.getClock()));
+            return day == null ? 0 : day.mWireBytes;
+        }
+    }
+
+    /// A summary of the bytes transferred on each recent day, newest first.
+    public @NonNull Map<String, String> getTransferSummaries() {
+        Map<String, String> result = new LinkedHashMap<>();
+        synchronized (mDays) {
+            for (Map.Entry<LocalDate, TransferStats> entry : mDays.descendingMap().entrySet()) {
+                result.put(entry.getKey().toString(), entry.getValue().summarize());
+            }
+        }
+        return result;
+    }
+
+    public synchronized void recordCacheLookup(@NonNull String cache, boolean hit) {
+        CacheStats stats = mCaches.get(cache);
+        if (stats == null) {
+            stats = new CacheStats();
+            mCaches.put(cache, stats);
+        }
+        stats.add(hit);
+    }
+
+    /// A one-line summary of a stage, e.g.
+    /// "n=12 p50=310ms p99=1204ms max=1300ms, 4.2KB/req (24.1KB decoded), 50.4KB total".
+    public @NonNull String getStageSummary(@NonNull Stage stage) {
+        final StageStats stats = mStages[stage.ordinal()];
+        synchronized (stats) {
+            return stats.summarize();
+        }
+    }
+
+    public @NonNull String getStageHistogram(@NonNull Stage stage) {
+        final StageStats stats = mStages[stage.ordinal()];
+        synchronized (stats) {
+            return stats.histogram();
+        }
+    }
+
+    /// Hit ratio of each cache over its most recent lookups, keyed by cache name.
+    public synchronized @NonNull Map<String, String> getCacheSummaries() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, CacheStats> entry : mCaches.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().summarize());
+        }
+        return result;
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println("Refresh stages (last " + RING_SIZE + " samples each):");
+        for (Stage stage : Stage.values()) {
+            writer.println("  " + stage.name().toLowerCase(Locale.ROOT) + ": "
+                    + getStageSummary(stage));
+            writer.println("    " + getStageHistogram(stage));
+        }
+
+        writer.println("Cache hit ratios (last " + RING_SIZE + " lookups each):");
+        for (Map.Entry<String, String> entry : getCacheSummaries().entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+
+        writer.println("Bytes transferred by day:");
+        for (Map.Entry<String, String> entry : getTransferSummaries().entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    private static @NonNull String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        else if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1fKB", bytes / 1024f);
+        }
+        return String.format(Locale.ROOT, "%.1fMB", bytes / (1024f * 1024f));
+    }
+
+    private static final class StageStats {
+        private final long[] mLatenciesNanos = new long[RING_SIZE];
+        private final long[] mWireBytes = new long[RING_SIZE];
+        private final long[] mDecodedBytes = new long[RING_SIZE];
+        private final long[] mBuckets = new long[BUCKET_BOUNDS_MS.length + 1];
+        private long mCount = 0;
+        private long mBytesCount = 0;
+        private long mTotalWireBytes = 0;
+
+        private void addLatency(long elapsedNanos) {
+            mLatenciesNanos[(int) (mCount % RING_SIZE)] = elapsedNanos;
+            mCount++;
+
+            final long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && millis >= BUCKET_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+        }
+
+        private void addBytes(long wireBytes, long decodedBytes) {
+            mWireBytes[(int) (mBytesCount % RING_SIZE)] = wireBytes;
+            mDecodedBytes[(int) (mBytesCount % RING_SIZE)] = decodedBytes;
+            mBytesCount++;
+            mTotalWireBytes += wireBytes;
+        }
+
+        private @NonNull String summarize() {
+            if (mCount == 0) {
+                return "no samples";
+            }
+
+            final int n = (int) Math.min(mCount, RING_SIZE);
+            final long[] sorted = Arrays.copyOf(mLatenciesNanos, n);
+            Arrays.sort(sorted);
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "n=%d p50=%dms p99=%dms max=%dms",
+                    mCount,
+                    TimeUnit.NANOSECONDS.toMillis(sorted[(n - 1) / 2]),
+                    TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(0.99 * n) - 1]),
+                    TimeUnit.NANOSECONDS.toMillis(sorted[n - 1])));
+
+            if (mBytesCount > 0) {
+                final int m = (int) Math.min(mBytesCount, RING_SIZE);
+                long recentWire = 0;
+                long recentDecoded = 0;
+                for (int i = 0; i < m; ++i) {
+                    recentWire += mWireBytes[i];
+                    recentDecoded += mDecodedBytes[i];
+                }
+                sb.append(", ").append(formatBytes(recentWire / m)).append("/req (")
+                        .append(formatBytes(recentDecoded / m)).append(" decoded), ")
+                        .append(formatBytes(mTotalWireBytes)).append(" total");
+            }
+
+            return sb.toString();
+        }
+
+        private @NonNull String histogram() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < mBuckets.length; ++i) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                if (i < BUCKET_BOUNDS_MS.length) {
+                    sb.append('<').append(BUCKET_BOUNDS_MS[i]).append("ms:");
+                }
+                else {
+                    sb.append(">=").append(BUCKET_BOUNDS_MS[i - 1]).append("ms:");
+                }
+                sb.append(mBuckets[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class TransferStats {
+        private long mRequests = 0;
+        private long mWireBytes = 0;
+        private long mDecodedBytes = 0;
+
+        private void add(long wireBytes, long decodedBytes) {
+            mRequests++;
+            mWireBytes += wireBytes;
+            mDecodedBytes += decodedBytes;
+        }
+
+        private @NonNull String summarize() {
+            return String.format(Locale.ROOT, "%s received, %s decoded, %d responses",
+                    formatBytes(mWireBytes), formatBytes(mDecodedBytes), mRequests);
+        }
+    }
+
+    private static final class CacheStats {
+        private final boolean[] mHits = new boolean[RING_SIZE];
+        private long mCount = 0;
+
+        private void add(boolean hit) {
+            mHits[(int) (mCount % RING_SIZE)] = hit;
+            mCount++;
+        }
+
+        private @NonNull String summarize() {
+            final int n = (int) Math.min(mCount, RING_SIZE);
+            int hits = 0;
+            for (int i = 0; i < n; ++i) {
+                if (mHits[i]) {
+                    hits++;
+                }
+            }
+            return String.format(Locale.ROOT, "%d/%d (%d%%)", hits, n, n == 0 ? 0 : 100 * hits / n);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.widget.RemoteViews;
+
+import androidx.annotation.LayoutRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/// Builds the timeline out of RemoteViews children instead of one big bitmap, so that SystemUI
+/// lays it out natively at its real size and each update only carries a few kilobytes. Each run of
+/// periods with the same condition is made from a fixed pool of segment layouts whose weights are
+/// powers of two; only the daylight arcs (and the static tick marks) are still bitmaps.
+public final class NativeTimeline {
+    private static final @LayoutRes int[] SEGMENT_LAYOUTS = {
+            R.layout.timeline_segment_16,
+            R.layout.timeline_segment_8,
+            R.layout.timeline_segment_4,
+            R.layout.timeline_segment_2,
+            R.layout.timeline_segment_1,
+    };
+    private static final int[] SEGMENT_WEIGHTS = {16, 8, 4, 2, 1};
+
+    /// Runs shorter than this many periods are left unlabeled, like in the bitmap timeline where
+    /// the label has to fit inside the segment.
+    private static final int MIN_LABELED_WEIGHT = 3;
+
+    private static final int DAYLIGHT_WIDTH = 480;
+    private static final int DAYLIGHT_HEIGHT = 12;
+    private static final int TICKS_WIDTH = 480;
+    private static final int TICKS_HEIGHT = 12;
+
+    private static @Nullable Bitmap sDaylight = null;
+    private static @Nullable String sDaylightKey = null;
+    private static @Nullable Bitmap sTicks = null;
+
+    private NativeTimeline() {}
+
+    public static void apply(
+            @NonNull Context context,
+            @NonNull RemoteViews views,
+            @NonNull GeographicPoint point,
+            @NonNull List<ForecastPeriod> periods,
+            boolean showTicks) {
+        final long start = Metrics.start();
+        final String packageName = context.getPackageName();
+
+        views.removeAllViews(R.id.segments);
+        for (int i = 0; i < periods.size();) {
+            final WeatherCondition condition = periods.get(i).getCondition();
+
+            int j = i;
+            while (j < periods.size() && periods.get(j).getCondition() == condition) {
+                j++;
+            }
+
+            // Decompose the run's length into powers of two, largest first; the largest piece
+            // carries the label.
+            final int color = context.getColor(condition.getColorId());
+            int remaining = j - i;
+            boolean labeled = false;
+            for (int k = 0; k < SEGMENT_WEIGHTS.length && remaining > 0; ++k) {
+                while (remaining >= SEGMENT_WEIGHTS[k]) {
+                    RemoteViews segment = new RemoteViews(packageName, SEGMENT_LAYOUTS[k]);
+                    segment.setInt(R.id.segment, "setBackgroundColor", color);
+                    if (!labeled && j - i >= MIN_LABELED_WEIGHT) {
+                        segment.setTextViewText(
+                                R.id.segment, context.getString(condition.getDescriptionId()));
+                        segment.setTextColor(
+                                R.id.segment, context.getColor(condition.getTextColorId()));
+                        labeled = true;
+                    }
+                    views.addView(R.id.segments, segment);
+                    remaining -= SEGMENT_WEIGHTS[k];
+                }
+            }
+
+            i = j;
+        }
+
+        views.setImageViewBitmap(
+                R.id.daylightView, getDaylight(context, point, periods.get(0).getStartTime()));
+        if (showTicks) {
+            views.setImageViewBitmap(R.id.ticksView, getTicks(context, periods.size()));
+        }
+
+        Metrics.getInstance().record(Metrics.Stage.RENDER_TIMELINE, start);
+    }
+
+    /// The daylight strip only changes with the location and the hour, and is shared by every
+    /// view that shows the same timeline.
+    private static synchronized @NonNull Bitmap getDaylight(
+            @NonNull Context context,
+            @NonNull GeographicPoint point,
+            @NonNull OffsetDateTime startTime) {
+        final String key = point.getLatitude() + "," + point.getLongitude() + "@" + startTime;
+        if (sDaylight == null || !key.equals(sDaylightKey)) {
+            sDaylight = Utils.createDaylightImage(
+                    context, point, startTime, DAYLIGHT_WIDTH, DAYLIGHT_HEIGHT);
+            sDaylightKey = key;
+        }
+        return sDaylight;
+    }
+
+    private static synchronized @NonNull Bitmap getTicks(@NonNull Context context, int periods) {
+        if (sTicks == null) {
+            sTicks = Utils.createTicksImage(context, periods, TICKS_WIDTH, TICKS_HEIGHT);
+        }
+        return sTicks;
+    }
+}
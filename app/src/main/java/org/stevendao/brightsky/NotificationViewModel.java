@@ -0,0 +1,207 @@
+package org.stevendao.brightsky;
+
+import android.text.format.DateUtils;
+import android.widget.RemoteViews;
+
+import androidx.annotation.IdRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/// Everything that is visible in the forecast notification, so that an update can be compared
+/// against the last one that was posted. The timeline and icon are represented by keys rather than
+/// by their bitmaps; equal keys mean that the previously rendered bitmaps can be reused.
+public final class NotificationViewModel {
+    /// Indices (into the 24 hourly periods) of the labeled hours under the timeline.
+    public static final int[] LABELED_PERIODS = {2, 6, 10, 14, 18, 22};
+
+    private static final long STALE_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(45);
+    private static final String DEFAULT_TITLE = "Current conditions";
+
+    private final @NonNull String mTitle;
+    private final @NonNull String mContentText;
+    private final @NonNull String[] mTemperatures;
+    private final @NonNull String[] mTimes;
+    private final long mWhen;
+    private final @Nullable String mSubText;
+    private final long mTimelineFingerprint;
+    private final @NonNull Optional<Integer> mIconTemperature;
+    private final @NonNull String mIconKey;
+
+    public NotificationViewModel(
+            @NonNull Forecast forecast,
+            @NonNull List<ForecastPeriod> twentyFour,
+            long nowMillis) {
+        this(forecast, twentyFour, Collections.emptyList(), null, nowMillis);
+    }
+
+    /// The alerts (most severe first) replace the title, so that a change in alerts alone is a
+    /// text-only update that reuses the rendered bitmaps. The icon shows the observed temperature
+    /// when there is a current observation, and the forecast for this hour otherwise.
+    public NotificationViewModel(
+            @NonNull Forecast forecast,
+            @NonNull List<ForecastPeriod> twentyFour,
+            @NonNull List<Alert> alerts,
+            @Nullable Observation observation,
+            long nowMillis) {
+        mTitle = alerts.isEmpty()
+                ? DEFAULT_TITLE
+                : alerts.stream().map(Alert::getEvent).distinct().collect(Collectors.joining(", "));
+
+        final String desc = forecast.getDescription();
+        final String city = forecast.getGeographicPoint().getCity();
+        if (city == null) {
+            mContentText = "No information available.";
+        } else if (desc == null) {
+            // The hourly forecast can be posted before the daily one arrives with the description.
+            mContentText = city;
+        } else {
+            mContentText = city + ": " + desc;
+        }
+
+        mTemperatures = new String[LABELED_PERIODS.length];
+        mTimes = new String[LABELED_PERIODS.length];
+        for (int i = 0; i < LABELED_PERIODS.length; ++i) {
+            ForecastPeriod fp = twentyFour.get(LABELED_PERIODS[i]);
+            mTemperatures[i] = fp
+                    .getTemperature()
+                    .map(x -> String.format(Locale.ROOT, "\u00a0%d\u00b0", x))
+                    .orElse("--");
+            mTimes[i] = fp.getFormattedStartTime();
+        }
+
+        // The notification's timestamp is when the forecast was fetched; if that's long enough
+        // ago that refreshes must have been failing, then call out the forecast's age too.
+        mWhen = forecast.getFetchTimeMillis();
+        if (nowMillis - mWhen > STALE_AFTER_MILLIS) {
+            mSubText = "Updated " + DateUtils.getRelativeTimeSpanString(
+                    mWhen, nowMillis, DateUtils.MINUTE_IN_MILLIS);
+        }
+        else {
+            mSubText = null;
+        }
+
+        mTimelineFingerprint = fingerprint(forecast.getGeographicPoint(), twentyFour);
+        mIconTemperature = observation != null && observation.getTemperature().isPresent()
+                ? observation.getTemperature()
+                : twentyFour.get(0).getTemperature();
+        mIconKey = mIconTemperature.map(String::valueOf).orElse("--");
+    }
+
+    /// Hashes exactly the inputs of Utils.createTimelineImage: each period's condition, and the
+    /// start time and location that determine where the daylight arcs fall.
+    private static long fingerprint(
+            @NonNull GeographicPoint point,
+            @NonNull List<ForecastPeriod> periods) {
+        long hash = 0xcbf29ce484222325L; // 64-bit FNV-1a.
+        hash = mix(hash, Double.doubleToLongBits(point.getLatitude()));
+        hash = mix(hash, Double.doubleToLongBits(point.getLongitude()));
+        hash = mix(hash, periods.size());
+        if (!periods.isEmpty()) {
+            hash = mix(hash, periods.get(0).getStartTime().toEpochSecond());
+            hash = mix(hash, periods.get(0).getStartTime().getOffset().getTotalSeconds());
+        }
+        for (ForecastPeriod period : periods) {
+            hash = mix(hash, period.getCondition().ordinal());
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; ++i) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public @NonNull String getTitle() {
+        return mTitle;
+    }
+
+    public @NonNull String getContentText() {
+        return mContentText;
+    }
+
+    public @NonNull String getTemperature(int i) {
+        return mTemperatures[i];
+    }
+
+    public @NonNull String getTime(int i) {
+        return mTimes[i];
+    }
+
+    public long getWhen() {
+        return mWhen;
+    }
+
+    public @Nullable String getSubText() {
+        return mSubText;
+    }
+
+    public long getTimelineFingerprint() {
+        return mTimelineFingerprint;
+    }
+
+    public @NonNull Optional<Integer> getIconTemperature() {
+        return mIconTemperature;
+    }
+
+    public @NonNull String getIconKey() {
+        return mIconKey;
+    }
+
+    /// Sets the description and the labels under the timeline in a notification or widget layout.
+    public void applyText(@NonNull RemoteViews views) {
+        final @IdRes int[] tempViews =
+                {R.id.temp2, R.id.temp6, R.id.temp10, R.id.temp14, R.id.temp18, R.id.temp22};
+        final @IdRes int[] timeViews =
+                {R.id.time2, R.id.time6, R.id.time10, R.id.time14, R.id.time18, R.id.time22};
+
+        views.setTextViewText(R.id.descTextView, mContentText);
+        for (int i = 0; i < LABELED_PERIODS.length; ++i) {
+            views.setTextViewText(tempViews[i], mTemperatures[i]);
+            views.setTextViewText(timeViews[i], mTimes[i]);
+        }
+    }
+
+    /// True if the two models differ only in text, so the rendered bitmaps can be reused.
+    public boolean hasSameImages(@Nullable NotificationViewModel other) {
+        return other != null
+                && mTimelineFingerprint == other.mTimelineFingerprint
+                && mIconKey.equals(other.mIconKey);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NotificationViewModel)) {
+            return false;
+        }
+        NotificationViewModel other = (NotificationViewModel) o;
+        return hasSameImages(other)
+                && mWhen == other.mWhen
+                && mTitle.equals(other.mTitle)
+                && mContentText.equals(other.mContentText)
+                && Arrays.equals(mTemperatures, other.mTemperatures)
+                && Arrays.equals(mTimes, other.mTimes)
+                && Objects.equals(mSubText, other.mSubText);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mTitle, mContentText, mWhen, mSubText, mTimelineFingerprint, mIconKey)
+                + 31 * Arrays.hashCode(mTemperatures)
+                + 961 * Arrays.hashCode(mTimes);
+    }
+}
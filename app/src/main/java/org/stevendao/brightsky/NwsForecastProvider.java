@@ -0,0 +1,106 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.volley.RequestQueue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/// Forecasts from api.weather.gov: the /points metadata for the location, then the hourly and
+/// daily forecasts for its gridpoint. If the NWS city is far off, then a better place name is
+/// looked up on the side while the forecasts download; a forecast handed out before the name
+/// arrives goes to the query's city listener again once it does.
+public final class NwsForecastProvider implements ForecastProvider {
+    private static final String TAG = NwsForecastProvider.class.getName();
+
+    private static ExecutorService sGeocodeExecutor = null;
+
+    private final @NonNull Context mContext;
+
+    public NwsForecastProvider(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public @NonNull String getName() {
+        return "nws";
+    }
+
+    @Override
+    public @Nullable Forecast fetch(@NonNull Location location, @NonNull Query query) {
+        final RequestQueue queue = Utils.getRequestQueue(mContext);
+
+        // The gridpoint metadata for a location practically never changes, so it can be reused
+        // from any cached forecast covering the location, skipping the /points request.
+        GeographicPoint point = null;
+        if (query.getReuseGridpoint()) {
+            Forecast covering = ForecastCache.getInstance().findContaining(
+                    location.getLatitude(), location.getLongitude(), Long.MAX_VALUE);
+            if (covering != null) {
+                point = covering.getGeographicPoint();
+                Log.d(TAG, "Reusing cached gridpoint " + point.getCity());
+            }
+        }
+        if (point == null) {
+            point = GeographicPoint.request(location, queue);
+        }
+        Log.d(TAG, "Point: " + point.getCity());
+
+        final CompletableFuture<GeographicPoint> resolvedPoint =
+                point.isCityApproximate() && query.getResolveCity()
+                        ? resolveCityAsync(point)
+                        : null;
+
+        final Forecast.HourlyListener hourlyListener = query.getHourlyListener();
+        Forecast forecast = Forecast.request(point, queue, query.isHourlyOnly(),
+                hourlyListener == null ? null : hourly -> hourlyListener.onHourlyForecast(
+                        withResolvedCity(hourly, resolvedPoint)));
+        if (forecast.getForecastPeriods().isEmpty()) {
+            return null;
+        }
+
+        final Forecast result = withResolvedCity(forecast, resolvedPoint);
+        final Forecast.HourlyListener cityListener = query.getCityListener();
+        if (resolvedPoint != null && !resolvedPoint.isDone() && cityListener != null) {
+            resolvedPoint.thenAccept(resolved -> {
+                if (resolved != result.getGeographicPoint()) {
+                    cityListener.onHourlyForecast(result.withGeographicPoint(resolved));
+                }
+            });
+        }
+        return result;
+    }
+
+    private @NonNull CompletableFuture<GeographicPoint> resolveCityAsync(
+            @NonNull GeographicPoint point) {
+        return CompletableFuture.supplyAsync(
+                () -> GeographicPoint.resolveCity(mContext, point), getGeocodeExecutor());
+    }
+
+    private static synchronized @NonNull ExecutorService getGeocodeExecutor() {
+        if (sGeocodeExecutor == null) {
+            sGeocodeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Geocode");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sGeocodeExecutor;
+    }
+
+    /// The forecast with the better place name, if it has already been resolved.
+    private static @NonNull Forecast withResolvedCity(
+            @NonNull Forecast forecast,
+            @Nullable CompletableFuture<GeographicPoint> resolvedPoint) {
+        final GeographicPoint point =
+                resolvedPoint != null ? resolvedPoint.getNow(null) : null;
+        return point != null ? forecast.withGeographicPoint(point) : forecast;
+    }
+}
@@ -0,0 +1,69 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+
+/// The latest measured conditions at an observation station.
+public final class Observation {
+    private final @NonNull String mStationId;
+    private final @NonNull OffsetDateTime mTimestamp;
+    private final @NonNull Optional<Integer> mTemperature;
+
+    private Observation(
+            @NonNull String stationId,
+            @NonNull OffsetDateTime timestamp,
+            @NonNull Optional<Integer> temperature) {
+        mStationId = stationId;
+        mTimestamp = timestamp;
+        mTemperature = temperature;
+    }
+
+    /// Parses an observation feature, or returns null if it has no timestamp.
+    public static @Nullable Observation fromFeature(
+            @NonNull String stationId,
+            @NonNull JSONObject feature) {
+        JSONObject properties = feature.optJSONObject("properties");
+        if (properties == null) {
+            return null;
+        }
+
+        OffsetDateTime timestamp;
+        try {
+            timestamp = OffsetDateTime.parse(properties.optString("timestamp"));
+        } catch (DateTimeParseException ignored) {
+            return null;
+        }
+
+        // Observations are in Celsius (unit "wmoUnit:degC"), and the value is null when the
+        // station didn't report it.
+        Optional<Integer> temperature = Optional.empty();
+        JSONObject temp = properties.optJSONObject("temperature");
+        if (temp != null && !temp.isNull("value")) {
+            double celsius = temp.optDouble("value");
+            if (!Double.isNaN(celsius)) {
+                temperature = Optional.of((int) Math.round(celsius * 9.0 / 5.0 + 32.0));
+            }
+        }
+
+        return new Observation(stationId, timestamp, temperature);
+    }
+
+    public @NonNull String getStationId() {
+        return mStationId;
+    }
+
+    public @NonNull OffsetDateTime getTimestamp() {
+        return mTimestamp;
+    }
+
+    /// The measured temperature in Fahrenheit, like the forecast's temperatures.
+    public @NonNull Optional<Integer> getTemperature() {
+        return mTemperature;
+    }
+}
@@ -0,0 +1,236 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Locale;
+
+/// Polls the latest observation from the station nearest the displayed forecast's gridpoint. The
+/// station comes from the {@link StationIndex}, so in the steady state each poll is one conditional
+/// request for a small document, which is usually answered with a 304. If the nearest station
+/// isn't reporting a temperature, the next nearest is tried, but every poll starts from the nearest
+/// one again. Polls share the {@link PollScheduler}'s timer, and so one radio wakeup, with the
+/// {@link AlertPoller}. The scheduler charges the first request of each poll to the
+/// {@link FetchGovernor}; follow-ups (a station list, or a farther station) are charged as they
+/// go, while the radio is still awake. This runs on the main thread and stops whenever the service
+/// does.
+public final class ObservationPoller implements PollScheduler.Poller {
+    public interface Listener {
+        /// Called on the main thread whenever the current observation changes (or expires).
+        void onObservationChanged(@Nullable Observation observation);
+    }
+
+    private static final String TAG = ObservationPoller.class.getName();
+    private static final String URL_FORMAT =
+            "https://api.weather.gov/stations/%s/observations/latest";
+
+    /// Stations usually report hourly; anything much older than that is no longer "current".
+    private static final Duration MAX_AGE = Duration.ofHours(2);
+
+    private final @NonNull Context mContext;
+    private final @NonNull Listener mListener;
+
+    private @Nullable String mStationsUrl = null;
+    private int mStationChoice = 0;
+    private @Nullable String mUrl = null;
+    private @Nullable String mETag = null;
+    private @Nullable String mLastModified = null;
+    private @Nullable Observation mObservation = null;
+    private @Nullable ConditionalJsonRequest mInFlight = null;
+    private boolean mRunning = false;
+
+    private long mPolls = 0;
+    private long mNotModified = 0;
+    private long mDenied = 0;
+
+    public ObservationPoller(@NonNull Context context, @NonNull Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    public void start() {
+        mRunning = true;
+    }
+
+    public void stop() {
+        mRunning = false;
+        cancelInFlight();
+    }
+
+    /// The latest observation, or null if there isn't a recent enough one.
+    public @Nullable Observation getObservation() {
+        if (mObservation != null && mObservation.getTimestamp()
+                .isBefore(OffsetDateTime.now(Utils.getClock()).minus(MAX_AGE))) {
+            return null;
+        }
+        return mObservation;
+    }
+
+    /// A poll starts from the nearest station, whichever one the last poll fell back to.
+    @Override
+    public void poll() {
+        mStationChoice = 0;
+        poll(true);
+    }
+
+    /// Sends the next request of this poll; only the first one has been charged already.
+    private void poll(boolean charged) {
+        if (!mRunning) {
+            return;
+        }
+
+        final Forecast forecast = ForecastCache.getInstance().getLatest();
+        final String stationsUrl =
+                forecast != null ? forecast.getGeographicPoint().getStationsUrl() : null;
+        if (stationsUrl == null) {
+            return;
+        }
+
+        if (!stationsUrl.equals(mStationsUrl)) {
+            mStationsUrl = stationsUrl;
+            mStationChoice = 0;
+            setObservation(null);
+        }
+
+        // The station list is only fetched the first time a gridpoint is seen, and then about
+        // once a month.
+        final StationIndex index = StationIndex.getInstance(mContext);
+        if (index.needsRefresh(stationsUrl, Utils.getClock().millis())) {
+            send(new ConditionalJsonRequest(
+                    stationsUrl, null, null, Metrics.Stage.STATIONS,
+                    result -> onStations(stationsUrl, result),
+                    error -> onError("Stations request failed: " + error)), charged);
+            return;
+        }
+
+        final List<String> stations = index.getStations(stationsUrl);
+        if (stations.isEmpty()) {
+            return;
+        }
+
+        final String stationId = stations.get(mStationChoice % stations.size());
+        final String url = String.format(Locale.ROOT, URL_FORMAT, stationId);
+        if (!url.equals(mUrl)) {
+            mUrl = url;
+            mETag = null;
+            mLastModified = null;
+        }
+
+        send(new ConditionalJsonRequest(
+                url, mETag, mLastModified, Metrics.Stage.OBSERVATION,
+                result -> onObservation(url, stationId, stations.size(), result),
+                error -> onError("Observation request failed: " + error)), charged);
+    }
+
+    private void onStations(
+            @NonNull String stationsUrl,
+            @NonNull ConditionalJsonRequest.Result result) {
+        mInFlight = null;
+        if (!mRunning) {
+            return;
+        }
+
+        // Without a body (a 304 or an empty response) there's nothing to index; try again at the
+        // next poll rather than stopping.
+        final JSONObject json = result.getJson();
+        if (json == null) {
+            return;
+        }
+
+        try {
+            StationIndex.getInstance(mContext).put(stationsUrl, json, Utils.getClock().millis());
+        } catch (JSONException e) {
+            onError("Unable to parse stations: " + e);
+            return;
+        }
+        poll(false);
+    }
+
+    private void onObservation(
+            @NonNull String url,
+            @NonNull String stationId,
+            int stationCount,
+            @NonNull ConditionalJsonRequest.Result result) {
+        mInFlight = null;
+        if (!mRunning || !url.equals(mUrl)) {
+            return;
+        }
+
+        mETag = result.getETag();
+        mLastModified = result.getLastModified();
+
+        final JSONObject json = result.getJson();
+        if (json == null) {
+            mNotModified++;
+            // An unchanged observation may still have aged out since the last poll.
+            if (mObservation != null && getObservation() == null) {
+                setObservation(null);
+            }
+            return;
+        }
+
+        final Observation observation = Observation.fromFeature(stationId, json);
+        if (observation != null && observation.getTemperature().isPresent()) {
+            setObservation(observation);
+        }
+        else if (mStationChoice + 1 < stationCount) {
+            // Fall back to the next nearest station for this cycle only.
+            Log.d(TAG, "No temperature from " + stationId + ", trying the next station");
+            mStationChoice++;
+            poll(false);
+        }
+    }
+
+    private void onError(@NonNull String message) {
+        Log.w(TAG, message);
+        mInFlight = null;
+    }
+
+    /// A refused follow-up waits for the next poll.
+    private void send(@NonNull ConditionalJsonRequest request, boolean charged) {
+        cancelInFlight();
+        if (!charged && !FetchGovernor.getInstance(mContext)
+                .tryAcquire(FetchGovernor.Priority.POLL, 1)) {
+            mDenied++;
+            return;
+        }
+        mPolls++;
+        mInFlight = request;
+        Utils.getRequestQueue(mContext).add(request);
+    }
+
+    private void cancelInFlight() {
+        if (mInFlight != null) {
+            mInFlight.cancel();
+            mInFlight = null;
+        }
+    }
+
+    private void setObservation(@Nullable Observation observation) {
+        final boolean changed = observation != mObservation;
+        mObservation = observation;
+        if (changed) {
+            mListener.onObservationChanged(getObservation());
+        }
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        final Observation observation = getObservation();
+        writer.println(String.format(Locale.ROOT,
+                "Observation: %s; %d polls, %d not modified, %d over budget",
+                observation == null ? "none" : observation.getStationId() + " at "
+                        + observation.getTimestamp() + ", " + observation.getTemperature(),
+                mPolls, mNotModified, mDenied));
+        StationIndex.getInstance(mContext).dump(writer);
+    }
+}
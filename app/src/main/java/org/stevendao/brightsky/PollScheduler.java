@@ -0,0 +1,128 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/// Runs the alert and observation polls on one timer, back to back, so that each tick costs a
+/// single radio wakeup in the {@link FetchGovernor} instead of one per poller. When a refresh has
+/// just woken the radio and the next tick is due soon anyway, the tick runs right away to share
+/// that wakeup too. Every 15 minutes is twice as often as the periodic refresh, which leaves
+/// polls a few wakeups an hour even when nothing lines up. Everything runs on the main thread,
+/// driven by a Handler, and stops whenever the service does.
+public final class PollScheduler {
+    /// Something polled on the shared timer.
+    public interface Poller {
+        /// Sends this poller's request for the tick. The tick has already been charged one
+        /// request for it; anything it sends later has to be charged separately.
+        void poll();
+    }
+
+    private static final String TAG = PollScheduler.class.getName();
+    private static final long POLL_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /// A tick this close to being due runs along with a refresh's wakeup instead.
+    private static final long ALIGN_WINDOW_MILLIS = POLL_INTERVAL_MILLIS / 2;
+
+    /// While the fetch budget refuses ticks, the interval doubles up to this many times, so polls
+    /// never fall behind the 30-minute periodic refresh.
+    private static final int MAX_BACKOFF_SHIFT = 1;
+
+    private final @NonNull Context mContext;
+    private final @NonNull List<Poller> mPollers;
+    private final @NonNull Handler mHandler = new Handler(Looper.getMainLooper());
+    private final @NonNull Runnable mTick = this::tick;
+    private final @NonNull Runnable mAlign = this::onRadioWoken;
+    private boolean mRunning = false;
+    private int mDeniedInARow = 0;
+    private long mNextTickUptimeMillis = 0;
+
+    private long mTicks = 0;
+    private long mAligned = 0;
+    private long mDenied = 0;
+
+    public PollScheduler(@NonNull Context context, @NonNull Poller... pollers) {
+        mContext = context.getApplicationContext();
+        mPollers = Arrays.asList(pollers);
+    }
+
+    public void start() {
+        if (!mRunning) {
+            mRunning = true;
+            FetchGovernor.getInstance(mContext).setWakeupListener(() -> mHandler.post(mAlign));
+            mHandler.post(mTick);
+        }
+    }
+
+    public void stop() {
+        mRunning = false;
+        FetchGovernor.getInstance(mContext).setWakeupListener(null);
+        mHandler.removeCallbacks(mTick);
+        mHandler.removeCallbacks(mAlign);
+    }
+
+    /// Polls right away instead of waiting for the next tick, e.g. after the location changed.
+    public void pollNow() {
+        if (mRunning) {
+            mHandler.removeCallbacks(mTick);
+            mHandler.post(mTick);
+        }
+    }
+
+    private void onRadioWoken() {
+        if (mRunning && mNextTickUptimeMillis - SystemClock.uptimeMillis() <= ALIGN_WINDOW_MILLIS) {
+            Log.d(TAG, "Polling early to share a refresh's wakeup");
+            mAligned++;
+            pollNow();
+        }
+    }
+
+    private void tick() {
+        if (!mRunning) {
+            return;
+        }
+
+        // Without a forecast there's no location to poll for; the first one calls pollNow().
+        if (ForecastCache.getInstance().getLatest() == null) {
+            schedule(POLL_INTERVAL_MILLIS);
+            return;
+        }
+
+        if (!FetchGovernor.getInstance(mContext)
+                .tryAcquire(FetchGovernor.Priority.POLL, mPollers.size())) {
+            mDenied++;
+            mDeniedInARow = Math.min(mDeniedInARow + 1, MAX_BACKOFF_SHIFT);
+            schedule(POLL_INTERVAL_MILLIS << mDeniedInARow);
+            return;
+        }
+        mDeniedInARow = 0;
+
+        mTicks++;
+        for (Poller poller : mPollers) {
+            poller.poll();
+        }
+        schedule(POLL_INTERVAL_MILLIS);
+    }
+
+    private void schedule(long delayMillis) {
+        mHandler.removeCallbacks(mTick);
+        mNextTickUptimeMillis = SystemClock.uptimeMillis() + delayMillis;
+        mHandler.postAtTime(mTick, mNextTickUptimeMillis);
+    }
+
+    public void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format(Locale.ROOT,
+                "Polls: %d ticks (%d sharing a refresh's wakeup), %d over budget",
+                mTicks, mAligned, mDenied));
+    }
+}
@@ -8,6 +8,7 @@ import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.preference.EditTextPreference;
+import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.SwitchPreferenceCompat;
 
@@ -92,6 +93,10 @@ public class PreferenceFragment extends PreferenceFragmentCompat {
             return true;
         });
 
+        // The diagnostics screen is only useful while developing.
+        Preference diagnostics = findPreference(getString(R.string.key_diagnostics));
+        diagnostics.setVisible(BuildConfig.DEBUG);
+
         // Sync the location summary with its text.
         location.setSummary(location.getText());
         location.setOnPreferenceChangeListener((preference, newValue) -> {
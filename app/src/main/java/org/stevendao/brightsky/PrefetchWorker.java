@@ -0,0 +1,108 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.android.volley.RequestQueue;
+
+import java.util.List;
+
+/// Fetches the point metadata and forecasts for the locations predicted by the {@link Prefetcher}
+/// and stores them in the {@link ForecastCache}. This is best-effort: failures are not retried.
+public class PrefetchWorker extends androidx.work.Worker {
+    private static final String TAG = PrefetchWorker.class.getName();
+    private static final String UNIQUE_WORK_NAME = "org.stevendao.brightsky.PREFETCH";
+    private static final String LATITUDES_KEY = "latitudes";
+    private static final String LONGITUDES_KEY = "longitudes";
+    private static final int REQUESTS_PER_LOCATION = 3;
+
+    public PrefetchWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        final Context context = getApplicationContext();
+        final double[] latitudes = getInputData().getDoubleArray(LATITUDES_KEY);
+        final double[] longitudes = getInputData().getDoubleArray(LONGITUDES_KEY);
+        if (latitudes == null || longitudes == null || latitudes.length != longitudes.length) {
+            return Result.failure();
+        }
+
+        // Conditions may have changed since the prefetch was enqueued.
+        if (!RefreshPolicy.getInstance(context).allowsPrefetch()) {
+            Log.d(TAG, "Refresh policy disallows prefetching, dropping");
+            return Result.success();
+        }
+
+        RequestQueue queue = Utils.getRequestQueue(context);
+        for (int i = 0; i < latitudes.length; ++i) {
+            if (isStopped()) {
+                break;
+            }
+
+            Location location = new Location("");
+            location.setLatitude(latitudes[i]);
+            location.setLongitude(longitudes[i]);
+
+            // An earlier prediction in this batch may already have covered this location.
+            if (Prefetcher.findCached(location) != null) {
+                continue;
+            }
+
+            // Prefetching gets the smallest share of the fetch budget.
+            if (!FetchGovernor.getInstance(context).tryAcquire(
+                    FetchGovernor.Priority.PREFETCH, REQUESTS_PER_LOCATION)) {
+                Log.d(TAG, "Fetch budget spent, skipping the rest of the prefetch");
+                break;
+            }
+
+            // Nothing is waiting on a prefetch, so the place name is just resolved inline.
+            GeographicPoint point = GeographicPoint.resolveCity(
+                    context, GeographicPoint.request(location, queue));
+            Forecast forecast = Forecast.request(point, queue);
+            Log.d(TAG, "Prefetched " + point.getCity() + ": "
+                    + forecast.getForecastPeriods().size() + " periods");
+            ForecastCache.getInstance().put(forecast);
+        }
+
+        return Result.success();
+    }
+
+    /// Prefetching is opportunistic, so it only runs when the battery isn't low and never
+    /// replaces a prefetch that is already queued or running.
+    public static void enqueue(@NonNull Context context, @NonNull List<Location> locations) {
+        double[] latitudes = new double[locations.size()];
+        double[] longitudes = new double[locations.size()];
+        for (int i = 0; i < locations.size(); ++i) {
+            latitudes[i] = locations.get(i).getLatitude();
+            longitudes[i] = locations.get(i).getLongitude();
+        }
+
+        Log.d(TAG, "Enqueuing prefetch of " + locations.size() + " locations");
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                UNIQUE_WORK_NAME,
+                ExistingWorkPolicy.KEEP,
+                new OneTimeWorkRequest.Builder(PrefetchWorker.class)
+                        .setInputData(new Data.Builder()
+                                .putDoubleArray(LATITUDES_KEY, latitudes)
+                                .putDoubleArray(LONGITUDES_KEY, longitudes)
+                                .build())
+                        .setConstraints(new Constraints.Builder()
+                                .setRequiredNetworkType(NetworkType.CONNECTED)
+                                .setRequiresBatteryNotLow(true)
+                                .build())
+                        .build());
+    }
+}
@@ -0,0 +1,164 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.location.LocationResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/// Watches the recent location history and, when the device is moving, predicts which gridpoints
+/// it will enter next so that their forecasts can be fetched before it gets there.
+public class Prefetcher {
+    private static final String TAG = Prefetcher.class.getName();
+    private static final int MAX_HISTORY = 8;
+    private static final long HISTORY_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final long MIN_PREFETCH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long CACHE_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    private static final float MIN_SPEED_MPS = 2f; // Roughly walking speed.
+    private static final float MAX_DISTANCE_M = 15000f;
+    private static final int[] HORIZONS_MINS = {10, 20, 30};
+    private static final int MAX_PREFETCH_POINTS = 2;
+    private static final double EARTH_RADIUS_M = 6371000.0;
+
+    private final @NonNull Context mContext;
+    private final ArrayDeque<Location> mHistory = new ArrayDeque<>();
+    private long mLastPrefetchElapsedMillis = Long.MIN_VALUE;
+
+    public Prefetcher(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public void onLocationResult(@NonNull LocationResult locationResult) {
+        for (Location location : locationResult.getLocations()) {
+            mHistory.addLast(location);
+        }
+        while (mHistory.size() > MAX_HISTORY) {
+            mHistory.removeFirst();
+        }
+
+        final Location last = mHistory.peekLast();
+        if (last == null) {
+            return;
+        }
+        while (last.getElapsedRealtimeNanos() - mHistory.getFirst().getElapsedRealtimeNanos()
+                > TimeUnit.MILLISECONDS.toNanos(HISTORY_MAX_AGE_MILLIS)) {
+            mHistory.removeFirst();
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        if (mLastPrefetchElapsedMillis != Long.MIN_VALUE
+                && now - mLastPrefetchElapsedMillis < MIN_PREFETCH_INTERVAL_MILLIS) {
+            return;
+        }
+
+        // Prefetching is the first thing to go when saving battery or data. Predictions go stale
+        // within minutes, so they are dropped rather than queued for later.
+        if (!RefreshPolicy.getInstance(mContext).allowsPrefetch()) {
+            return;
+        }
+
+        final List<Location> predicted = predict();
+        if (!predicted.isEmpty()) {
+            mLastPrefetchElapsedMillis = now;
+            PrefetchWorker.enqueue(mContext, predicted);
+        }
+    }
+
+    public void clear() {
+        mHistory.clear();
+    }
+
+    /// Projects the current heading and speed forward and returns the predicted locations that
+    /// aren't already covered by a fresh cached forecast.
+    private @NonNull List<Location> predict() {
+        final Location last = mHistory.peekLast();
+        final Location first = mHistory.peekFirst();
+        List<Location> result = new ArrayList<>();
+        if (last == null || first == null) {
+            return result;
+        }
+
+        float speed;
+        float bearing;
+        if (last.hasSpeed() && last.hasBearing()) {
+            speed = last.getSpeed();
+            bearing = last.getBearing();
+        }
+        else {
+            final long elapsedNanos =
+                    last.getElapsedRealtimeNanos() - first.getElapsedRealtimeNanos();
+            if (first == last || elapsedNanos <= 0) {
+                return result;
+            }
+            speed = first.distanceTo(last) / (elapsedNanos / 1e9f);
+            bearing = first.bearingTo(last);
+        }
+
+        if (speed < MIN_SPEED_MPS) {
+            return result;
+        }
+        Log.d(TAG, "Moving at " + speed + " m/s, bearing " + bearing);
+
+        final ForecastCache cache = ForecastCache.getInstance();
+        final Forecast current = cache.findContaining(
+                last.getLatitude(), last.getLongitude(), CACHE_MAX_AGE_MILLIS);
+        for (int horizon : HORIZONS_MINS) {
+            final float distance = Math.min(
+                    MAX_DISTANCE_M, speed * TimeUnit.MINUTES.toSeconds(horizon));
+            final Location target = destination(last, bearing, distance);
+
+            if (current != null
+                    && current.getCell() != null
+                    && current.getCell().contains(target.getLatitude(), target.getLongitude())) {
+                continue;
+            }
+            if (cache.findContaining(
+                    target.getLatitude(), target.getLongitude(), CACHE_MAX_AGE_MILLIS) != null) {
+                continue;
+            }
+
+            result.add(target);
+            if (result.size() >= MAX_PREFETCH_POINTS || distance >= MAX_DISTANCE_M) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /// Great-circle destination from a start point given an initial bearing and distance.
+    private static @NonNull Location destination(
+            @NonNull Location start,
+            float bearingDegrees,
+            float distanceMeters) {
+        final double angular = distanceMeters / EARTH_RADIUS_M;
+        final double bearing = Math.toRadians(bearingDegrees);
+        final double lat1 = Math.toRadians(start.getLatitude());
+        final double lon1 = Math.toRadians(start.getLongitude());
+
+        final double lat2 = Math.asin(Math.sin(lat1) * Math.cos(angular)
+                + Math.cos(lat1) * Math.sin(angular) * Math.cos(bearing));
+        final double lon2 = lon1 + Math.atan2(
+                Math.sin(bearing) * Math.sin(angular) * Math.cos(lat1),
+                Math.cos(angular) - Math.sin(lat1) * Math.sin(lat2));
+
+        Location location = new Location("");
+        location.setLatitude(Math.toDegrees(lat2));
+        location.setLongitude(Math.toDegrees(lon2));
+        return location;
+    }
+
+    public static @Nullable Forecast findCached(@NonNull Location location) {
+        return ForecastCache.getInstance().findContaining(
+                location.getLatitude(), location.getLongitude(), CACHE_MAX_AGE_MILLIS);
+    }
+}
@@ -0,0 +1,209 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/// Decides how much work each refresh may do, based on the battery and power-save state, the kind
+/// of network, and how many bytes {@link Metrics} has seen come in today. On a charger or Wi-Fi,
+/// refreshes are as fresh as ever; otherwise they fetch less, less often. The periodic worker
+/// still runs every 30 minutes (WorkManager can't stretch a periodic request from inside it), but
+/// runs that come before the mode's interval has passed return without touching the network,
+/// which is where the energy goes. Doze needs no mode of its own: it already holds the worker
+/// until a maintenance window, and the device isn't reported as idle during one.
+public final class RefreshPolicy {
+    public enum Mode {
+        /// Charging, or on an unmetered network with a healthy battery.
+        FULL(R.string.refresh_mode_full, 30, false, true, true),
+        /// On a metered network: the same cadence, but the daily forecast (only used for the
+        /// description) is fetched less often.
+        METERED(R.string.refresh_mode_metered, 30, true, true, false),
+        /// Battery saver is on, the battery is low, or a metered network has carried more than a
+        /// day's worth of data.
+        SAVER(R.string.refresh_mode_saver, 60, true, false, false),
+        ;
+
+        private final @StringRes int mDescriptionId;
+        private final long mIntervalMillis;
+        private final boolean mHourlyOnly;
+        private final boolean mGeocode;
+        private final boolean mPrefetch;
+
+        Mode(
+                @StringRes int descriptionId,
+                int intervalMins,
+                boolean hourlyOnly,
+                boolean geocode,
+                boolean prefetch) {
+            mDescriptionId = descriptionId;
+            mIntervalMillis = TimeUnit.MINUTES.toMillis(intervalMins);
+            mHourlyOnly = hourlyOnly;
+            mGeocode = geocode;
+            mPrefetch = prefetch;
+        }
+
+        public @StringRes int getDescriptionId() {
+            return mDescriptionId;
+        }
+
+        /// How long a fetched forecast is considered fresh enough to skip a periodic refresh.
+        public long getIntervalMillis() {
+            return mIntervalMillis;
+        }
+
+        /// Whether to reuse a recent cached description instead of fetching the daily forecast.
+        public boolean isHourlyOnly() {
+            return mHourlyOnly;
+        }
+
+        /// Whether to fix up far-off place names with the (network-backed) Geocoder.
+        public boolean allowsGeocoding() {
+            return mGeocode;
+        }
+
+        public boolean allowsPrefetch() {
+            return mPrefetch;
+        }
+    }
+
+    private static final String TAG = RefreshPolicy.class.getName();
+    private static final int LOW_BATTERY_PERCENT = 20;
+
+    /// Past this many bytes received today, a metered network gets the saver cadence. The gzipped
+    /// forecasts come to about 5 KB a refresh, so a normal day is well under a megabyte and this
+    /// only kicks in when something is fetching more than it should. (The count covers every
+    /// network since the process started, which errs toward saving.)
+    private static final long METERED_DAILY_WIRE_BYTES = 2 * 1024 * 1024;
+
+    private static RefreshPolicy sInstance = null;
+
+    private final @NonNull Context mContext;
+    private final long[] mModeCounts = new long[Mode.values().length];
+    private @Nullable Mode mLastMode = null;
+    private @NonNull String mLastReason = "";
+    private long mLastDecisionMillis = 0;
+
+    public static synchronized @NonNull RefreshPolicy getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new RefreshPolicy(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private RefreshPolicy(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /// Picks the mode for a refresh that's about to run, and records it for diagnostics.
+    public synchronized @NonNull Mode select() {
+        final Decision decision = decide();
+        if (decision.mMode != mLastMode) {
+            Log.d(TAG, "Refresh mode " + decision.mMode + " (" + decision.mReason + ")");
+        }
+        mModeCounts[decision.mMode.ordinal()]++;
+        mLastMode = decision.mMode;
+        mLastReason = decision.mReason;
+        mLastDecisionMillis = Utils.getClock().millis();
+        return decision.mMode;
+    }
+
+    /// Whether opportunistic work like prefetching should run right now.
+    public boolean allowsPrefetch() {
+        return decide().mMode.allowsPrefetch();
+    }
+
+    private @NonNull Decision decide() {
+        final PowerManager power = mContext.getSystemService(PowerManager.class);
+        final BatteryManager battery = mContext.getSystemService(BatteryManager.class);
+        final ConnectivityManager connectivity =
+                mContext.getSystemService(ConnectivityManager.class);
+
+        final boolean charging = battery != null && battery.isCharging();
+        final int level = battery != null
+                ? battery.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+                : 100;
+        final boolean metered = connectivity != null && connectivity.isActiveNetworkMetered();
+        final long wireBytesToday = Metrics.getInstance().getWireBytesToday();
+
+        Mode mode;
+        String reason;
+        if (charging) {
+            mode = Mode.FULL;
+            reason = "charging";
+        }
+        else if (power != null && power.isPowerSaveMode()) {
+            mode = Mode.SAVER;
+            reason = "battery saver on";
+        }
+        else if (level > 0 && level <= LOW_BATTERY_PERCENT) {
+            mode = Mode.SAVER;
+            reason = "battery at " + level + "%";
+        }
+        else if (metered && wireBytesToday > METERED_DAILY_WIRE_BYTES) {
+            mode = Mode.SAVER;
+            reason = "metered network, " + wireBytesToday / 1024 + " KB received today";
+        }
+        else if (metered) {
+            mode = Mode.METERED;
+            reason = "metered network";
+        }
+        else {
+            mode = Mode.FULL;
+            reason = "unmetered network, battery at " + level + "%";
+        }
+
+        return new Decision(mode, reason);
+    }
+
+    /// The most recently selected mode, or null if no refresh has run in this process yet.
+    public synchronized @Nullable Mode getLastMode() {
+        return mLastMode;
+    }
+
+    /// Why the last mode was selected, e.g. "battery saver on".
+    public synchronized @NonNull String getLastReason() {
+        return mLastReason;
+    }
+
+    /// How many refreshes have used each mode in this process.
+    public synchronized @NonNull String getModeCounts() {
+        StringBuilder builder = new StringBuilder();
+        for (Mode mode : Mode.values()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(mode).append('=').append(mModeCounts[mode.ordinal()]);
+        }
+        return builder.toString();
+    }
+
+    public synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format(Locale.ROOT,
+                "Refresh policy: %s, %d s ago; %s",
+                mLastMode == null ? "none yet" : mLastMode + " (" + mLastReason + ")",
+                mLastMode == null
+                        ? 0
+                        : (Utils.getClock().millis() - mLastDecisionMillis) / 1000,
+                getModeCounts()));
+    }
+
+    private static final class Decision {
+        private final @NonNull Mode mMode;
+        private final @NonNull String mReason;
+
+        private Decision(@NonNull Mode mode, @NonNull String reason) {
+            mMode = mode;
+            mReason = reason;
+        }
+    }
+}
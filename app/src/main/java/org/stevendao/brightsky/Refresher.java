@@ -0,0 +1,213 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/// One refresh of the displayed forecast: resolve the location, fetch (or reuse) the forecast for
+/// it and post it to the service. The periodic and one-shot workers run this through WorkManager;
+/// user-initiated refreshes are expedited by running it directly on a foreground-priority thread,
+/// so that a changed location shows up without waiting for the job scheduler.
+public final class Refresher {
+    public enum Outcome {
+        /// A forecast (fresh or cached) was posted.
+        SUCCESS,
+        /// The fetch budget is spent and nothing cached could stand in; try again later.
+        DEFERRED,
+        /// The weather API couldn't be reached or returned nothing usable.
+        API_FAILURE,
+        /// There's no location to refresh; retrying won't help.
+        FAILURE,
+    }
+
+    private static final String TAG = Refresher.class.getName();
+    private static final int REQUESTS_PER_REFRESH = 3; // /points, /forecast and /forecast/hourly.
+    private static final long FALLBACK_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private static ExecutorService sExpeditedExecutor = null;
+
+    private Refresher() {}
+
+    /// Refreshes right away on a dedicated foreground-priority thread, outside of WorkManager, and
+    /// times the whole path until the notification is posted. Anything that fails is handed to a
+    /// one-shot worker, which has WorkManager's retries and backoff.
+    public static void expedite(@NonNull Context context) {
+        final Context appContext = context.getApplicationContext();
+        Metrics.getInstance().begin(Metrics.Stage.USER_REFRESH);
+        getExpeditedExecutor().execute(() -> {
+            final Outcome outcome = refresh(appContext, FetchGovernor.Priority.USER, true);
+            Log.d(TAG, "Expedited refresh: " + outcome);
+            if (outcome == Outcome.DEFERRED || outcome == Outcome.API_FAILURE) {
+                Worker.doOnce(appContext);
+            }
+        });
+    }
+
+    private static synchronized @NonNull ExecutorService getExpeditedExecutor() {
+        if (sExpeditedExecutor == null) {
+            sExpeditedExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    runnable.run();
+                }, "ExpeditedRefresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sExpeditedExecutor;
+    }
+
+    /// Runs one refresh on the calling thread, which may block on the network. With
+    /// reuseGridpoint, the /points request is skipped if a cached forecast covers the location.
+    public static @NonNull Outcome refresh(
+            @NonNull Context context,
+            @NonNull FetchGovernor.Priority priority,
+            boolean reuseGridpoint) {
+        final long locationStart = Metrics.start();
+        Location location;
+        if (Utils.getUseCurrentLocation(context)) {
+            location = Utils.getCurrentLocation(context);
+            Log.d(TAG, "Current location: " + location);
+
+            if (location == null) {
+                AlwaysOnNotificationService.notifyService(
+                        context,
+                        AlwaysOnNotificationService.MESSAGE_NO_CURRENT_LOCATION,
+                        null);
+                return Outcome.FAILURE;
+            }
+        }
+        else {
+            location = Utils.getLocationFromPlaceName(context, Utils.getStaticPlaceName(context));
+            Log.d(TAG, "Static location: " + location);
+
+            if (location == null) {
+                AlwaysOnNotificationService.notifyService(
+                        context,
+                        AlwaysOnNotificationService.MESSAGE_INVALID_STATIC_LOCATION,
+                        null);
+                return Outcome.FAILURE;
+            }
+        }
+
+        Metrics.getInstance().record(Metrics.Stage.LOCATION, locationStart);
+
+        // On battery saver, in Doze and on metered networks, periodic refreshes are spaced out:
+        // if the displayed forecast still covers this location and is newer than the mode's
+        // interval, then just re-post it (re-windowed to the current hour) without any requests.
+        final RefreshPolicy.Mode mode = RefreshPolicy.getInstance(context).select();
+        final Forecast latest = ForecastCache.getInstance().getLatest();
+        if (priority == FetchGovernor.Priority.PERIODIC && latest != null
+                && Utils.getClock().millis() - latest.getFetchTimeMillis()
+                        < mode.getIntervalMillis()
+                && latest.getCell() != null
+                && latest.getCell().contains(location.getLatitude(), location.getLongitude())) {
+            Log.d(TAG, "Forecast is recent enough for " + mode + ", skipping");
+            AlwaysOnNotificationService.notifyService(
+                    context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, latest);
+            return Outcome.SUCCESS;
+        }
+
+        // If this location falls inside a gridpoint cell that was fetched (or prefetched) recently,
+        // then skip the /points and forecast requests entirely.
+        Forecast cachedForecast = Prefetcher.findCached(location);
+        Metrics.getInstance().recordCacheLookup(Metrics.CACHE_FORECAST, cachedForecast != null);
+        if (cachedForecast != null) {
+            Log.d(TAG, "Using cached forecast for " +
+                    cachedForecast.getGeographicPoint().getCity());
+            AlwaysOnNotificationService.notifyService(
+                    context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, cachedForecast);
+            return Outcome.SUCCESS;
+        }
+
+        // Stay within the fetch budget. If it's spent, then fall back to an older cached forecast
+        // for this location, or else try again later.
+        if (!FetchGovernor.getInstance(context).tryAcquire(priority, REQUESTS_PER_REFRESH)) {
+            Forecast fallback = ForecastCache.getInstance().findContaining(
+                    location.getLatitude(), location.getLongitude(), FALLBACK_MAX_AGE_MILLIS);
+            if (fallback != null) {
+                Log.d(TAG, "Fetch budget spent, using older cached forecast");
+                AlwaysOnNotificationService.notifyService(
+                        context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, fallback);
+                return Outcome.SUCCESS;
+            }
+
+            Log.d(TAG, "Fetch budget spent, deferring");
+            return Outcome.DEFERRED;
+        }
+
+        // Post the timeline as soon as the hourly data is in; the description follows as a
+        // text-only update once the daily forecast arrives. If api.weather.gov misses its latency
+        // target, then a cached forecast stands in and the fresh one is published when it arrives.
+        // A user-initiated refresh reuses the gridpoint of any cached forecast covering the
+        // location, skipping the /points request. If the NWS city is far off, then a better one is
+        // looked up alongside the forecast requests and patched in if it arrives after them.
+        final ForecastProvider.Query query = new ForecastProvider.Query(
+                mode.isHourlyOnly(),
+                reuseGridpoint,
+                mode.allowsGeocoding(),
+                hourly -> {
+                    Log.d(TAG, "Posting hourly forecast ahead of the description");
+                    AlwaysOnNotificationService.notifyService(
+                            context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, hourly);
+                },
+                late -> publishLate(context, late),
+                patched -> patchCity(context, patched));
+        Forecast newForecast = FallbackForecastProvider.getDefault(context).fetch(location, query);
+        if (newForecast == null) {
+            // The service keeps showing the last good forecast for now, so there's no hurry to
+            // revalidate.
+            AlwaysOnNotificationService.notifyService(
+                    context,
+                    AlwaysOnNotificationService.MESSAGE_API_FAILURE,
+                    null);
+            return Outcome.API_FAILURE;
+        }
+        Log.d(TAG, "Forecast: " + newForecast.getForecastPeriods().size() + " periods");
+
+        ForecastCache.getInstance().put(newForecast);
+        AlwaysOnNotificationService.notifyService(
+                context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, newForecast);
+        // Log the forecast only once it's on its way to the notification; the disk write isn't
+        // something the user should wait for.
+        ForecastHistory.getInstance(context).append(newForecast);
+        return Outcome.SUCCESS;
+    }
+
+    /// Publishes a forecast that api.weather.gov delivered after a cached one had already been
+    /// posted in its place, unless the device has since moved to another gridpoint.
+    private static void publishLate(@NonNull Context context, @NonNull Forecast late) {
+        ForecastCache.getInstance().put(late);
+
+        final Forecast latest = ForecastCache.getInstance().getLatest();
+        if (latest == null || Objects.equals(
+                latest.getGeographicPoint().getForecastHourlyUrl(),
+                late.getGeographicPoint().getForecastHourlyUrl())) {
+            AlwaysOnNotificationService.notifyService(
+                    context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, late);
+        }
+        ForecastHistory.getInstance(context).append(late);
+    }
+
+    /// Re-posts a forecast with its late-arriving place name, as a text-only update, unless a
+    /// newer forecast has been published in the meantime.
+    private static void patchCity(@NonNull Context context, @NonNull Forecast patched) {
+        final Forecast latest = ForecastCache.getInstance().getLatest();
+        if (latest != null && latest.getFetchTimeMillis() > patched.getFetchTimeMillis()) {
+            return;
+        }
+
+        Log.d(TAG, "Patching in place name " + patched.getGeographicPoint().getCity());
+        ForecastCache.getInstance().put(patched);
+        AlwaysOnNotificationService.notifyService(
+                context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, patched);
+    }
+}
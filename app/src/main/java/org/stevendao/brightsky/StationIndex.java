@@ -0,0 +1,123 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/// Remembers the nearest observation stations of each gridpoint the user has been in, so that
+/// picking a station for a steady-state observation poll costs no requests. A gridpoint's stations
+/// almost never change, so its entry is only refreshed once it's a month old. The index is
+/// persisted in its own preferences file and keeps the most recently indexed gridpoints.
+public final class StationIndex {
+    private static final String TAG = StationIndex.class.getName();
+    private static final String PREFS_NAME = "org.stevendao.brightsky.STATION_INDEX";
+    private static final String INDEX_KEY = "index";
+    private static final String STATIONS_KEY = "stations";
+    private static final String FETCHED_KEY = "fetched";
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int MAX_GRIDPOINTS = 16;
+
+    /// Only the nearest few stations are kept, in case the nearest isn't reporting.
+    private static final int STATIONS_PER_GRIDPOINT = 3;
+
+    private static StationIndex sInstance = null;
+
+    private final SharedPreferences mPrefs;
+
+    /// Gridpoint stations URL to {"stations": [...], "fetched": millis}, oldest first.
+    private final JSONObject mIndex;
+    private long mRefreshes = 0;
+
+    public static synchronized @NonNull StationIndex getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new StationIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    StationIndex(@NonNull Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        JSONObject index;
+        try {
+            index = new JSONObject(mPrefs.getString(INDEX_KEY, "{}"));
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding unreadable station index", e);
+            index = new JSONObject();
+        }
+        mIndex = index;
+    }
+
+    /// The station IDs nearest the gridpoint, nearest first, or an empty list if the gridpoint
+    /// isn't indexed yet.
+    public synchronized @NonNull List<String> getStations(@NonNull String stationsUrl) {
+        JSONObject entry = mIndex.optJSONObject(stationsUrl);
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+
+        JSONArray stations = entry.optJSONArray(STATIONS_KEY);
+        List<String> result = new ArrayList<>();
+        for (int i = 0; stations != null && i < stations.length(); ++i) {
+            result.add(stations.optString(i));
+        }
+        return result;
+    }
+
+    /// True if the gridpoint isn't indexed, or its entry is old enough to be refreshed.
+    public synchronized boolean needsRefresh(@NonNull String stationsUrl, long nowMillis) {
+        JSONObject entry = mIndex.optJSONObject(stationsUrl);
+        return entry == null || nowMillis - entry.optLong(FETCHED_KEY) > MAX_AGE_MILLIS;
+    }
+
+    /// Indexes a gridpoint from its stations FeatureCollection (which the API sorts by distance).
+    public synchronized void put(
+            @NonNull String stationsUrl,
+            @NonNull JSONObject featureCollection,
+            long nowMillis) throws JSONException {
+        JSONArray features = featureCollection.getJSONArray("features");
+        JSONArray stations = new JSONArray();
+        for (int i = 0; i < features.length() && stations.length() < STATIONS_PER_GRIDPOINT; ++i) {
+            String id = features
+                    .getJSONObject(i)
+                    .getJSONObject("properties")
+                    .optString("stationIdentifier");
+            if (!id.isEmpty()) {
+                stations.put(id);
+            }
+        }
+
+        // Re-inserting moves the entry to the end, so the first entries are the least recently
+        // indexed ones.
+        mIndex.remove(stationsUrl);
+        mIndex.put(stationsUrl, new JSONObject()
+                .put(STATIONS_KEY, stations)
+                .put(FETCHED_KEY, nowMillis));
+        while (mIndex.length() > MAX_GRIDPOINTS) {
+            mIndex.remove(mIndex.keys().next());
+        }
+
+        mRefreshes++;
+        mPrefs.edit().putString(INDEX_KEY, mIndex.toString()).apply();
+    }
+
+    public synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println(String.format(Locale.ROOT,
+                "Station index: %d gridpoints, %d refreshes", mIndex.length(), mRefreshes));
+    }
+}
@@ -0,0 +1,188 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Px;
+import androidx.annotation.VisibleForTesting;
+
+import java.time.OffsetDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/// Renders timeline bitmaps for the notification and the home-screen widgets, caching the most
+/// recent bitmap for each size. Every view of the same size showing the same timeline (as
+/// identified by {@link NotificationViewModel#getTimelineFingerprint()}) shares one bitmap.
+///
+/// When the timeline changes without moving (same location, start time and length, so only some
+/// conditions differ, as when a forecast is refreshed within the hour), a copy of the retained
+/// bitmap is repainted over just the runs that changed instead of being drawn again from scratch.
+/// The retained bitmap itself is never changed once it's returned: RemoteViews holding it are
+/// parceled on other threads (startForeground on the main thread, widget updates on the main and
+/// refresh threads) without this object's lock, so repainting it in place could tear a parcel.
+public final class TimelineRenderer implements CacheRegistry.Cache {
+    private static final int MAX_SIZES = 8;
+    private static final String TAG = TimelineRenderer.class.getName();
+    private static final String CACHE_NAME = "timeline";
+
+    private static TimelineRenderer sInstance = null;
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_SIZES, 0.75f, /*accessOrder=*/ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_SIZES;
+                }
+            };
+
+    public static synchronized @NonNull TimelineRenderer getInstance() {
+        if (sInstance == null) {
+            sInstance = new TimelineRenderer();
+            CacheRegistry.getInstance().register(sInstance, CacheRegistry.Priority.RENDERED);
+        }
+        return sInstance;
+    }
+
+    private TimelineRenderer() {}
+
+    public @NonNull Bitmap render(
+            @NonNull Context context,
+            @NonNull GeographicPoint point,
+            @NonNull List<ForecastPeriod> periods,
+            long fingerprint,
+            @Px int width,
+            @Px int height,
+            @Px int gutter) {
+        final String key = String.format(Locale.ROOT, "%dx%d+%d", width, height, gutter);
+        final Bitmap bitmap;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            final boolean hit = entry != null && entry.mFingerprint == fingerprint;
+            Metrics.getInstance().recordCacheLookup(CACHE_NAME, hit);
+            if (hit) {
+                return entry.mBitmap;
+            }
+
+            final WeatherCondition[] conditions = new WeatherCondition[periods.size()];
+            for (int i = 0; i < conditions.length; ++i) {
+                conditions[i] = periods.get(i).getCondition();
+            }
+
+            final int[] dirty = entry != null && entry.isSameFrame(point, periods)
+                    ? findDirtyRange(entry.mConditions, conditions)
+                    : null;
+            if (dirty != null && dirty[0] == dirty[1]) {
+                bitmap = entry.mBitmap;
+            }
+            else if (dirty != null) {
+                Log.d(TAG, "Repainting periods " + dirty[0] + "-" + dirty[1] + " of " + key);
+                bitmap = entry.mBitmap.copy(entry.mBitmap.getConfig(), /*isMutable=*/ true);
+                Utils.redrawTimelineRange(
+                        context, bitmap, point, periods, height, dirty[0], dirty[1]);
+            }
+            else {
+                bitmap = Utils.createTimelineImage(
+                        context, point, periods, width, height, gutter);
+            }
+            mEntries.put(key, new Entry(fingerprint, bitmap, point, periods, conditions));
+        }
+        CacheRegistry.getInstance().enforceBudget();
+        return bitmap;
+    }
+
+    /// The smallest [from, to) that covers every changed period and, on both sides, whole runs of
+    /// equal conditions in the old and the new timeline; a run's label is centered on the run, so
+    /// growing or shrinking it moves the label. The sequences must be the same length; if they
+    /// don't differ (say, two fingerprints collided), then the range is empty: [0, 0).
+    @VisibleForTesting
+    static @NonNull int[] findDirtyRange(
+            @NonNull WeatherCondition[] before,
+            @NonNull WeatherCondition[] after) {
+        int from = 0;
+        while (from < after.length && before[from] == after[from]) {
+            from++;
+        }
+        if (from == after.length) {
+            return new int[] {0, 0};
+        }
+        int to = after.length;
+        while (to > from && before[to - 1] == after[to - 1]) {
+            to--;
+        }
+
+        while (from > 0
+                && (before[from - 1] == before[from] || after[from - 1] == after[from])) {
+            from--;
+        }
+        while (to < after.length
+                && (before[to] == before[to - 1] || after[to] == after[to - 1])) {
+            to++;
+        }
+        return new int[] {from, to};
+    }
+
+    @Override
+    public @NonNull String getName() {
+        return CACHE_NAME;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (Entry entry : mEntries.values()) {
+            size += entry.mBitmap.getAllocationByteCount();
+        }
+        return size;
+    }
+
+    /// Dropped bitmaps aren't recycled, since a posted notification or widget may still be
+    /// showing them.
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        long size = getSizeBytes();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            size -= it.next().mBitmap.getAllocationByteCount();
+            it.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final long mFingerprint;
+        private final @NonNull Bitmap mBitmap;
+        private final double mLatitude;
+        private final double mLongitude;
+        private final @NonNull OffsetDateTime mStartTime;
+        private final @NonNull WeatherCondition[] mConditions;
+
+        private Entry(
+                long fingerprint,
+                @NonNull Bitmap bitmap,
+                @NonNull GeographicPoint point,
+                @NonNull List<ForecastPeriod> periods,
+                @NonNull WeatherCondition[] conditions) {
+            mFingerprint = fingerprint;
+            mBitmap = bitmap;
+            mLatitude = point.getLatitude();
+            mLongitude = point.getLongitude();
+            mStartTime = periods.get(0).getStartTime();
+            mConditions = conditions;
+        }
+
+        /// Whether the bitmap lays out the periods in the same places with the same daylight arcs,
+        /// so that only the segments can differ.
+        private boolean isSameFrame(
+                @NonNull GeographicPoint point,
+                @NonNull List<ForecastPeriod> periods) {
+            return mLatitude == point.getLatitude()
+                    && mLongitude == point.getLongitude()
+                    && mConditions.length == periods.size()
+                    && mStartTime.equals(periods.get(0).getStartTime());
+        }
+    }
+}
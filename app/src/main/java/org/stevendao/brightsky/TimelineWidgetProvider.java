@@ -0,0 +1,134 @@
+package org.stevendao.brightsky;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/// A resizable home-screen widget showing the same 24-hour timeline as the notification. It never
+/// fetches anything itself; it is updated in the same pass as the notification, from the same
+/// forecast, with timeline bitmaps from the shared {@link TimelineRenderer}.
+public class TimelineWidgetProvider extends AppWidgetProvider {
+    private static final String TAG = TimelineWidgetProvider.class.getName();
+
+    /// Widget widths are rounded to this many pixels so that nearly-equal sizes share a bitmap.
+    private static final int WIDTH_GRANULARITY_PX = 32;
+
+    @Override
+    public void onEnabled(Context context) {
+        // The periodic worker normally runs while the notification service does; make sure it
+        // also runs for the widgets alone.
+        Worker.startPeriodic(context);
+    }
+
+    @Override
+    public void onDisabled(Context context) {
+        if (!Utils.getAlwaysOnNotification(context)) {
+            Worker.stopPeriodic(context);
+        }
+    }
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager manager, int[] appWidgetIds) {
+        update(context, manager, appWidgetIds, ForecastCache.getInstance().getLatest());
+    }
+
+    @Override
+    public void onAppWidgetOptionsChanged(
+            Context context, AppWidgetManager manager, int appWidgetId, Bundle newOptions) {
+        update(context, manager, new int[] {appWidgetId}, ForecastCache.getInstance().getLatest());
+    }
+
+    public static boolean hasWidgets(@NonNull Context context) {
+        return getAppWidgetIds(context).length > 0;
+    }
+
+    public static void updateAll(@NonNull Context context, @NonNull Forecast forecast) {
+        final List<ForecastPeriod> twentyFour = forecast.get24HourForecastPeriods();
+        updateAll(context, forecast, twentyFour,
+                new NotificationViewModel(forecast, twentyFour, Utils.getClock().millis()));
+    }
+
+    public static void updateAll(
+            @NonNull Context context,
+            @NonNull Forecast forecast,
+            @NonNull List<ForecastPeriod> twentyFour,
+            @NonNull NotificationViewModel model) {
+        final int[] appWidgetIds = getAppWidgetIds(context);
+        if (appWidgetIds.length == 0) {
+            return;
+        }
+
+        final AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        for (int appWidgetId : appWidgetIds) {
+            manager.updateAppWidget(
+                    appWidgetId,
+                    createViews(context, manager, appWidgetId, forecast, twentyFour, model));
+        }
+        Log.d(TAG, "Updated " + appWidgetIds.length + " widgets");
+    }
+
+    private static void update(
+            @NonNull Context context,
+            @NonNull AppWidgetManager manager,
+            @NonNull int[] appWidgetIds,
+            @Nullable Forecast forecast) {
+        if (forecast == null) {
+            // Nothing has been fetched yet in this process; the next refresh will fill these in.
+            // This runs at boot and on every resize, so only start a refresh if none is pending,
+            // and at background priority.
+            Worker.doOnceIfIdle(context);
+            return;
+        }
+
+        final List<ForecastPeriod> twentyFour = forecast.get24HourForecastPeriods();
+        final NotificationViewModel model =
+                new NotificationViewModel(forecast, twentyFour, Utils.getClock().millis());
+        for (int appWidgetId : appWidgetIds) {
+            manager.updateAppWidget(
+                    appWidgetId,
+                    createViews(context, manager, appWidgetId, forecast, twentyFour, model));
+        }
+    }
+
+    private static @NonNull RemoteViews createViews(
+            @NonNull Context context,
+            @NonNull AppWidgetManager manager,
+            int appWidgetId,
+            @NonNull Forecast forecast,
+            @NonNull List<ForecastPeriod> twentyFour,
+            @NonNull NotificationViewModel model) {
+        // The minimum width is the width in portrait, which is the narrower and more common case.
+        final Bundle options = manager.getAppWidgetOptions(appWidgetId);
+        final float density = context.getResources().getDisplayMetrics().density;
+        final int widthDp = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH, 250);
+        final int width = Math.max(WIDTH_GRANULARITY_PX,
+                Math.round(widthDp * density / WIDTH_GRANULARITY_PX) * WIDTH_GRANULARITY_PX);
+        final int height = width / 10;
+
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
+        model.applyText(views);
+        views.setImageViewBitmap(R.id.imageView, TimelineRenderer.getInstance().render(
+                context,
+                forecast.getGeographicPoint(),
+                twentyFour,
+                model.getTimelineFingerprint(),
+                width,
+                height,
+                height / 4));
+        return views;
+    }
+
+    private static @NonNull int[] getAppWidgetIds(@NonNull Context context) {
+        return AppWidgetManager.getInstance(context).getAppWidgetIds(
+                new ComponentName(context, TimelineWidgetProvider.class));
+    }
+}
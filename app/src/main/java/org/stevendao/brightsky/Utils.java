@@ -20,58 +20,302 @@ import android.text.TextPaint;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.Px;
+import androidx.annotation.VisibleForTesting;
 import androidx.preference.PreferenceManager;
 
+import com.android.volley.AuthFailureError;
 import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.RequestFuture;
+import com.android.volley.toolbox.Volley;
 import com.google.common.base.Splitter;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public final class Utils {
-    public static RequestFuture<JSONObject> requestJsonObject(
+    private static final int MAX_GEOCODE_ENTRIES = 8;
+
+    /// Timeout of every API request, each of which is a single attempt.
+    static final int REQUEST_TIMEOUT_MS = 10000;
+
+    private static RequestQueue sRequestQueue = null;
+    private static Clock sClock = Clock.systemDefaultZone();
+
+    /// JSON requests in flight, by normalized URL.
+    private static final Map<String, InFlight> sInFlight = new HashMap<>();
+
+    /// Recent Geocoder results, which go over the network but practically never change: place
+    /// names to their coordinates, and coordinates (rounded to about 100 m) to place names.
+    private static final Map<String, double[]> sPlaceNameCache = createLruMap();
+    private static final Map<String, String> sLatLongCache = createLruMap();
+
+    /// Rough heap cost of a geocode entry beyond its strings.
+    private static final long GEOCODE_ENTRY_BYTES = 96;
+
+    static {
+        CacheRegistry.getInstance().register(new CacheRegistry.Cache() {
+            @Override
+            public @NonNull String getName() {
+                return Metrics.CACHE_GEOCODE;
+            }
+
+            @Override
+            public long getSizeBytes() {
+                long size = 0;
+                synchronized (sPlaceNameCache) {
+                    for (String placeName : sPlaceNameCache.keySet()) {
+                        size += GEOCODE_ENTRY_BYTES + 2L * placeName.length();
+                    }
+                }
+                synchronized (sLatLongCache) {
+                    for (Map.Entry<String, String> entry : sLatLongCache.entrySet()) {
+                        size += GEOCODE_ENTRY_BYTES
+                                + 2L * (entry.getKey().length() + entry.getValue().length());
+                    }
+                }
+                return size;
+            }
+
+            /// Both maps are small and bounded, so either they're kept or they're cleared.
+            @Override
+            public void trimToSize(long maxBytes) {
+                if (getSizeBytes() <= maxBytes) {
+                    return;
+                }
+                synchronized (sPlaceNameCache) {
+                    sPlaceNameCache.clear();
+                }
+                synchronized (sLatLongCache) {
+                    sLatLongCache.clear();
+                }
+            }
+        }, CacheRegistry.Priority.LOOKUP);
+    }
+
+    /// A single Volley queue shared by every fetch in the process, so that each refresh doesn't
+    /// spin up (and leak) its own set of network threads.
+    public static synchronized @NonNull RequestQueue getRequestQueue(@NonNull Context context) {
+        if (sRequestQueue == null) {
+            sRequestQueue = Volley.newRequestQueue(context.getApplicationContext());
+        }
+        return sRequestQueue;
+    }
+
+    /// Lets tests route every fetch through a stand-in network stack.
+    @VisibleForTesting
+    public static synchronized void setRequestQueue(@Nullable RequestQueue queue) {
+        sRequestQueue = queue;
+    }
+
+    /// The clock that every forecast age, hour window and budget is measured against. Elapsed
+    /// time for metrics still comes from System.nanoTime(), since it measures real work.
+    public static synchronized @NonNull Clock getClock() {
+        return sClock;
+    }
+
+    /// Lets tests run the time-dependent logic against a virtual clock; null restores the system
+    /// clock.
+    @VisibleForTesting
+    public static synchronized void setClock(@Nullable Clock clock) {
+        sClock = clock != null ? clock : Clock.systemDefaultZone();
+    }
+
+    /// Requests a JSON document, sharing the request (and its parsed result) with any other caller
+    /// already waiting for the same URL; the periodic and one-shot refreshes can overlap and
+    /// would otherwise fetch and parse every document twice. Each caller gets its own future, so
+    /// one giving up doesn't cancel the request for the others; once every caller has cancelled,
+    /// the request itself is cancelled.
+    public static @NonNull Future<JSONObject> requestJsonObject(
             @NonNull RequestQueue queue,
-            @NonNull String url) {
-        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+            @NonNull String url,
+            @NonNull Metrics.Stage stage) {
+        final String key = normalizeUrl(url);
+        final InFlight inFlight;
+        synchronized (sInFlight) {
+            InFlight existing = sInFlight.get(key);
+            Metrics.getInstance().recordCacheLookup(Metrics.CACHE_IN_FLIGHT, existing != null);
+            if (existing != null) {
+                inFlight = existing;
+            }
+            else {
+                inFlight = new InFlight();
+                inFlight.mRequest = createJsonObjectRequest(url, stage, key, inFlight);
+                sInFlight.put(key, inFlight);
+                queue.add(inFlight.mRequest);
+            }
+            inFlight.mWaiters++;
+        }
+
+        final CompletableFuture<JSONObject> waiter = inFlight.mShared.thenApply(json -> json);
+        waiter.whenComplete((json, error) -> {
+            if (waiter.isCancelled()) {
+                releaseInFlight(key, inFlight);
+            }
+        });
+        return waiter;
+    }
+
+    private static @NonNull Request<JSONObject> createJsonObjectRequest(
+            @NonNull String url,
+            @NonNull Metrics.Stage stage,
+            @NonNull String key,
+            @NonNull InFlight inFlight) {
         JsonObjectRequest request = new JsonObjectRequest(
                 Request.Method.GET,
                 url,
                 null,
-                future,
-                future);
-        request.setShouldRetryServerErrors(true);
-        request.setRetryPolicy(new DefaultRetryPolicy(500, 5, 2f));
+                json -> {
+                    finishInFlight(key, inFlight);
+                    inFlight.mShared.complete(json);
+                },
+                error -> {
+                    finishInFlight(key, inFlight);
+                    inFlight.mShared.completeExceptionally(error);
+                }) {
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                Map<String, String> headers = new HashMap<>(super.getHeaders());
+                CompressedJson.addHeaders(headers);
+                return headers;
+            }
+
+            @Override
+            protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+                try {
+                    return Response.success(
+                            CompressedJson.parse(response, stage),
+                            HttpHeaderParser.parseCacheHeaders(response));
+                } catch (IOException | JSONException e) {
+                    return Response.error(new ParseError(e));
+                }
+            }
+        };
+        // No retries within a request, so that each request is one attempt against the fetch
+        // budget; a failed refresh is retried as a whole, with backoff, and charged again.
+        request.setRetryPolicy(new DefaultRetryPolicy(REQUEST_TIMEOUT_MS, 0, 1f));
         request.setShouldCache(true);
-        queue.add(request);
-        return future;
+        return request;
+    }
+
+    /// Removes the request before its result is delivered, so that a caller arriving after this
+    /// starts a new request instead of joining a finished one.
+    private static void finishInFlight(@NonNull String key, @NonNull InFlight inFlight) {
+        synchronized (sInFlight) {
+            sInFlight.remove(key, inFlight);
+        }
+    }
+
+    /// Called when a caller cancels its future. The last one to leave cancels the request, so that
+    /// an abandoned fetch isn't downloaded and parsed for nobody.
+    private static void releaseInFlight(@NonNull String key, @NonNull InFlight inFlight) {
+        synchronized (sInFlight) {
+            inFlight.mWaiters--;
+            if (inFlight.mWaiters > 0 || inFlight.mShared.isDone()) {
+                return;
+            }
+            sInFlight.remove(key, inFlight);
+        }
+        inFlight.mRequest.cancel();
+        inFlight.mShared.cancel(false);
+    }
+
+    /// URLs that differ only in the case of the scheme or host, a default port, a trailing slash or
+    /// a fragment name the same document.
+    @VisibleForTesting
+    static @NonNull String normalizeUrl(@NonNull String url) {
+        try {
+            final URI uri = new URI(url).normalize();
+            final String scheme = uri.getScheme() == null
+                    ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+            final String host = uri.getHost() == null
+                    ? null : uri.getHost().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if (("https".equals(scheme) && port == 443) || ("http".equals(scheme) && port == 80)) {
+                port = -1;
+            }
+            String path = uri.getRawPath();
+            if (path != null && path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            if (scheme != null) {
+                sb.append(scheme).append("://");
+            }
+            if (host != null) {
+                sb.append(host);
+            }
+            if (port != -1) {
+                sb.append(':').append(port);
+            }
+            if (path != null) {
+                sb.append(path);
+            }
+            if (uri.getRawQuery() != null) {
+                sb.append('?').append(uri.getRawQuery());
+            }
+            return sb.toString();
+        } catch (URISyntaxException e) {
+            return url;
+        }
     }
 
     public static Location getLocationFromPlaceName(
             @NonNull Context context,
             @NonNull String placeName) {
+        double[] cached;
+        synchronized (sPlaceNameCache) {
+            cached = sPlaceNameCache.get(placeName);
+        }
+        Metrics.getInstance().recordCacheLookup(Metrics.CACHE_GEOCODE, cached != null);
+        if (cached != null) {
+            Location location = new Location("");
+            location.setLatitude(cached[0]);
+            location.setLongitude(cached[1]);
+            return location;
+        }
+
         List<Address> addressList = null;
+        final long start = Metrics.start();
         try {
             addressList = new Geocoder(context).getFromLocationName(placeName, 1);
         } catch (IOException ignored) {
         }
+        Metrics.getInstance().record(Metrics.Stage.GEOCODE, start);
 
         if (addressList != null && !addressList.isEmpty()) {
             Location location = new Location("");
             location.setLatitude(addressList.get(0).getLatitude());
             location.setLongitude(addressList.get(0).getLongitude());
+            synchronized (sPlaceNameCache) {
+                sPlaceNameCache.put(placeName,
+                        new double[] {location.getLatitude(), location.getLongitude()});
+            }
             return location;
         }
 
@@ -82,20 +326,45 @@ public final class Utils {
             @NonNull Context context,
             double latitude,
             double longitude) {
+        final String key = String.format(Locale.ROOT, "%.3f,%.3f", latitude, longitude);
+        String cached;
+        synchronized (sLatLongCache) {
+            cached = sLatLongCache.get(key);
+        }
+        Metrics.getInstance().recordCacheLookup(Metrics.CACHE_GEOCODE, cached != null);
+        if (cached != null) {
+            return cached;
+        }
+
         List<Address> addressList = null;
+        final long start = Metrics.start();
         try {
             addressList = new Geocoder(context).getFromLocation(latitude, longitude, 1);
         } catch (IOException ignored) {
         }
+        Metrics.getInstance().record(Metrics.Stage.GEOCODE, start);
 
+        String placeName = null;
         if (addressList != null && !addressList.isEmpty()) {
-            if (addressList.get(0).getSubLocality() != null) {
-                return addressList.get(0).getSubLocality();
+            placeName = addressList.get(0).getSubLocality() != null
+                    ? addressList.get(0).getSubLocality()
+                    : addressList.get(0).getLocality();
+        }
+        if (placeName != null) {
+            synchronized (sLatLongCache) {
+                sLatLongCache.put(key, placeName);
             }
-            return addressList.get(0).getLocality();
         }
+        return placeName;
+    }
 
-        return null;
+    private static <V> Map<String, V> createLruMap() {
+        return new LinkedHashMap<String, V>(MAX_GEOCODE_ENTRIES, 0.75f, /*accessOrder=*/ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_GEOCODE_ENTRIES;
+            }
+        };
     }
 
     public static boolean getUseCurrentLocation(@NonNull Context context) {
@@ -147,12 +416,36 @@ public final class Utils {
                 .apply();
     }
 
+    public static boolean getAlwaysOnNotification(@NonNull Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = context.getString(R.string.key_always_on_notification);
+        return prefs.getBoolean(key, false);
+    }
+
+    public static boolean getUseNativeTimeline(@NonNull Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = context.getString(R.string.key_native_timeline);
+        return prefs.getBoolean(key, false);
+    }
+
     public static String getStaticPlaceName(@NonNull Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         String key = context.getString(R.string.key_static_place_name);
         return prefs.getString(key, "New York, NY 10028");
     }
 
+    /// How long the last good forecast may still be shown while refreshes are failing.
+    public static long getMaxStalenessMillis(@NonNull Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = context.getString(R.string.key_max_staleness);
+        try {
+            return TimeUnit.HOURS.toMillis(Long.parseLong(prefs.getString(key, "6")));
+        }
+        catch (NumberFormatException ignored) {
+            return TimeUnit.HOURS.toMillis(6);
+        }
+    }
+
     public static Bitmap createTimelineImage(
             @NonNull Context context,
             @NonNull GeographicPoint point,
@@ -160,12 +453,60 @@ public final class Utils {
             @Px int width,
             @Px int height,
             @Px int gutter) {
-        final int heightWithGutter = height + gutter;
-        final float cornerRadius = height * 0.125f;
-
-        Bitmap b = Bitmap.createBitmap(width, heightWithGutter, Bitmap.Config.ARGB_8888);
+        final long start = Metrics.start();
+        Bitmap b = Bitmap.createBitmap(width, height + gutter, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(b);
 
+        drawTimeline(context, canvas, point, forecast, width, height, 0, forecast.size());
+
+        // Draw the gutter with tick marks.
+        if (gutter > 0) {
+            drawTicks(context, canvas, forecast.size(), width, height, gutter);
+        }
+
+        Metrics.getInstance().record(Metrics.Stage.RENDER_TIMELINE, start);
+        return b;
+    }
+
+    /// Repaints the periods in [from, to) of a bitmap made by {@link #createTimelineImage} for the
+    /// same location and start time, leaving the rest (and the gutter) alone. The range must cover
+    /// whole runs of equal conditions, since each run's label is centered on the whole run.
+    public static void redrawTimelineRange(
+            @NonNull Context context,
+            @NonNull Bitmap bitmap,
+            @NonNull GeographicPoint point,
+            @NonNull List<ForecastPeriod> forecast,
+            @Px int height,
+            int from,
+            int to) {
+        final long start = Metrics.start();
+        final int width = bitmap.getWidth();
+        final float periodWidth = width / (float) forecast.size();
+
+        Canvas canvas = new Canvas(bitmap);
+        canvas.save();
+        canvas.clipRect(Math.round(periodWidth * from), 0, Math.round(periodWidth * to), height);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        drawTimeline(context, canvas, point, forecast, width, height, from, to);
+        canvas.restore();
+
+        Metrics.getInstance().record(Metrics.Stage.RENDER_TIMELINE, start);
+    }
+
+    /// Draws the segments for the runs of periods that start in [from, to), then the daylight arcs
+    /// and the rounded border over everything; a caller repainting part of the timeline clips the
+    /// canvas to that part first.
+    private static void drawTimeline(
+            @NonNull Context context,
+            @NonNull Canvas canvas,
+            @NonNull GeographicPoint point,
+            @NonNull List<ForecastPeriod> forecast,
+            @Px int width,
+            @Px int height,
+            int from,
+            int to) {
+        final float cornerRadius = height * 0.125f;
+
         TextPaint textPaint = new TextPaint();
         textPaint.setFlags(Paint.ANTI_ALIAS_FLAG);
         textPaint.setTextAlign(Paint.Align.CENTER);
@@ -178,7 +519,7 @@ public final class Utils {
         // Draw the timeline segments.
         Paint paint = new Paint();
         float periodWidth = width / (float) forecast.size();
-        for (int i = 0; i < forecast.size();) {
+        for (int i = from; i < to;) {
             final WeatherCondition periodStart = forecast.get(i).getCondition();
 
             // Combine all the subsequent periods with the same weather condition.
@@ -211,8 +552,33 @@ public final class Utils {
         }
 
         // Draw the daylight arcs over contiguous daytime periods.
+        drawDaylightArcs(context, canvas, point, forecast.get(0).getStartTime(),
+                width, height * 0.75f, height * 1.25f);
+
+        // Clip out a rounded rectangle border.
+        Path inverseRoundRect = new Path();
+        inverseRoundRect.addRoundRect(
+                0, 0, width, height, cornerRadius, cornerRadius, Path.Direction.CW);
+        inverseRoundRect.toggleInverseFillType();
+
+        Paint xferPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        xferPaint.setColor(Color.TRANSPARENT);
+        xferPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        canvas.drawPath(inverseRoundRect, xferPaint);
+    }
+
+    /// Draws the arcs marking daylight in the 24 hours from the given start time; the ovals span
+    /// from top to bottom, and the canvas clips whatever falls outside it.
+    private static void drawDaylightArcs(
+            @NonNull Context context,
+            @NonNull Canvas canvas,
+            @NonNull GeographicPoint point,
+            @NonNull OffsetDateTime startTime,
+            @Px int width,
+            float top,
+            float bottom) {
+        Paint paint = new Paint();
         paint.setColor(context.getColor(R.color.daylight));
-        final OffsetDateTime startTime = forecast.get(0).getStartTime();
         final Daytime[] daytimes = {
                 new Daytime(point, startTime),
                 new Daytime(point, startTime.plusDays(1)),
@@ -225,48 +591,69 @@ public final class Utils {
             float left = (sunrise.getSeconds() / secondsPerDay) * width;
             float right = (sunset.getSeconds() / secondsPerDay) * width;
 
-            canvas.drawOval(left, height * 0.75f, right, height * 1.25f, paint);
+            canvas.drawOval(left, top, right, bottom, paint);
         }
+    }
 
-        // Clip out a rounded rectangle border.
-        Path inverseRoundRect = new Path();
-        inverseRoundRect.addRoundRect(
-                0, 0, width, height, cornerRadius, cornerRadius, Path.Direction.CW);
-        inverseRoundRect.toggleInverseFillType();
-
-        Paint xferPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        xferPaint.setColor(Color.TRANSPARENT);
-        xferPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
-        canvas.drawPath(inverseRoundRect, xferPaint);
-
-        // Draw the gutter with tick marks.
-        if (gutter > 0) {
-            paint.setColor(context.getColor(R.color.tick));
-            paint.setStrokeWidth(4.0f);
-
-            for (int i = 1; i < forecast.size(); ++i) {
-                if ((i + 2) % 4 == 0) {
-                    canvas.drawLine(
-                            periodWidth * i,
-                            height + gutter * 0.33f,
-                            periodWidth * i,
-                            heightWithGutter,
-                            paint);
-                } else {
-                    canvas.drawLine(
-                            periodWidth * i,
-                            height + gutter * 0.33f,
-                            periodWidth * i,
-                            height + gutter * 0.67f,
-                            paint);
-                }
+    /// Draws a tick between each period in the gutter below the timeline, with a longer tick at
+    /// each labeled hour.
+    private static void drawTicks(
+            @NonNull Context context,
+            @NonNull Canvas canvas,
+            int periods,
+            @Px int width,
+            @Px int top,
+            @Px int gutter) {
+        Paint paint = new Paint();
+        paint.setColor(context.getColor(R.color.tick));
+        paint.setStrokeWidth(4.0f);
+
+        final float periodWidth = width / (float) periods;
+        for (int i = 1; i < periods; ++i) {
+            if ((i + 2) % 4 == 0) {
+                canvas.drawLine(
+                        periodWidth * i,
+                        top + gutter * 0.33f,
+                        periodWidth * i,
+                        top + gutter,
+                        paint);
+            } else {
+                canvas.drawLine(
+                        periodWidth * i,
+                        top + gutter * 0.33f,
+                        periodWidth * i,
+                        top + gutter * 0.67f,
+                        paint);
             }
         }
+    }
 
+    /// The bottom strip of the timeline where the daylight arcs show, for use under a timeline
+    /// that is laid out natively instead of rendered into one bitmap.
+    public static Bitmap createDaylightImage(
+            @NonNull Context context,
+            @NonNull GeographicPoint point,
+            @NonNull OffsetDateTime startTime,
+            @Px int width,
+            @Px int height) {
+        Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        drawDaylightArcs(context, new Canvas(b), point, startTime, width, 0, height * 2);
+        return b;
+    }
+
+    /// Just the gutter with tick marks, for use under a natively laid-out timeline.
+    public static Bitmap createTicksImage(
+            @NonNull Context context,
+            int periods,
+            @Px int width,
+            @Px int gutter) {
+        Bitmap b = Bitmap.createBitmap(width, gutter, Bitmap.Config.ARGB_8888);
+        drawTicks(context, new Canvas(b), periods, width, 0, gutter);
         return b;
     }
 
     public static Icon createIcon(Optional<Integer> temperature) {
+        final long start = Metrics.start();
         Bitmap b = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(b);
 
@@ -292,6 +679,14 @@ public final class Utils {
         // ignoring the degree symbol.
         textPaint.getTextBounds(text, 0, text.length() - 1, bounds);
         canvas.drawText(text, 96f / 2f, (96f / 2f) - (bounds.top / 2f), textPaint);
+        Metrics.getInstance().record(Metrics.Stage.RENDER_ICON, start);
         return Icon.createWithBitmap(b);
     }
+
+    /// A shared request and the number of callers still waiting for it.
+    private static final class InFlight {
+        private final CompletableFuture<JSONObject> mShared = new CompletableFuture<>();
+        private Request<JSONObject> mRequest;
+        private int mWaiters = 0;
+    }
 }
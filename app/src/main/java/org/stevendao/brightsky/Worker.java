@@ -1,31 +1,29 @@
 package org.stevendao.brightsky;
 
 import android.content.Context;
-import android.location.Location;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
-import androidx.work.WorkRequest;
 import androidx.work.WorkerParameters;
 
-import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.Volley;
-
 import java.util.concurrent.TimeUnit;
 
 public class Worker extends androidx.work.Worker {
     private static final int WORK_INTERVAL_MINS = 30;
     private static final int WORK_RUN_ATTEMPTS = 5;
+    private static final int RETRY_BACKOFF_MINS = 1;
     private static final String UNIQUE_PERIODIC_WORK_NAME = "org.stevendao.brightsky.WORKER";
     private static final String UNIQUE_ONE_SHOT_WORK_NAME = "org.stevendao.brightsky.ONE_SHOT";
+    private static final String PRIORITY_KEY = "priority";
 
     public Worker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
@@ -34,56 +32,29 @@ public class Worker extends androidx.work.Worker {
     @NonNull
     @Override
     public Result doWork() {
-        final Context context = getApplicationContext();
-        Location location;
-        if (Utils.getUseCurrentLocation(context)) {
-            location = Utils.getCurrentLocation(context);
-            Log.d(Worker.class.getName(), "Current location: " + location);
-
-            if (location == null) {
-                AlwaysOnNotificationService.notifyService(
-                        context,
-                        AlwaysOnNotificationService.MESSAGE_NO_CURRENT_LOCATION,
-                        null);
+        switch (Refresher.refresh(getApplicationContext(), getPriority(), false)) {
+            case SUCCESS:
+                return Result.success();
+            case DEFERRED:
+            case API_FAILURE:
+                // Retries back off exponentially, and a refresh that still can't get through the
+                // fetch budget or the API gives up until the next periodic one.
+                if (getRunAttemptCount() < WORK_RUN_ATTEMPTS) {
+                    return Result.retry();
+                }
                 return Result.failure();
-            }
-        }
-        else {
-            location = Utils.getLocationFromPlaceName(context, Utils.getStaticPlaceName(context));
-            Log.d(Worker.class.getName(), "Static location: " + location);
-
-            if (location == null) {
-                AlwaysOnNotificationService.notifyService(
-                        context,
-                        AlwaysOnNotificationService.MESSAGE_INVALID_STATIC_LOCATION,
-                        null);
+            case FAILURE:
+            default:
                 return Result.failure();
-            }
         }
+    }
 
-        RequestQueue queue = Volley.newRequestQueue(context);
-
-        GeographicPoint newPoint = GeographicPoint.request(location, queue, context);
-        Log.d(Worker.class.getName(), "Point: " + newPoint.getCity());
-
-        Forecast newForecast = Forecast.request(newPoint, queue);
-        Log.d(Worker.class.getName(),
-                "Forecast: " + newForecast.getForecastPeriods().size() + " periods");
-        if (newForecast.getForecastPeriods().isEmpty()) {
-            if (getRunAttemptCount() < WORK_RUN_ATTEMPTS) {
-                return Result.retry();
-            }
-
-            AlwaysOnNotificationService.notifyService(
-                    context,
-                    AlwaysOnNotificationService.MESSAGE_API_FAILURE,
-                    null);
-            return Result.failure();
+    private @NonNull FetchGovernor.Priority getPriority() {
+        final String priority = getInputData().getString(PRIORITY_KEY);
+        if (priority == null) {
+            return FetchGovernor.Priority.PERIODIC;
         }
-
-        AlwaysOnNotificationService.notifyService(
-                context, AlwaysOnNotificationService.MESSAGE_NEW_FORECAST, newForecast);
-        return Result.success();
+        return FetchGovernor.Priority.valueOf(priority);
     }
 
     public static void startPeriodic(@NonNull Context context) {
@@ -92,13 +63,16 @@ public class Worker extends androidx.work.Worker {
                 UNIQUE_PERIODIC_WORK_NAME,
                 ExistingPeriodicWorkPolicy.REPLACE,
                 new PeriodicWorkRequest.Builder(Worker.class, WORK_INTERVAL_MINS, TimeUnit.MINUTES)
+                        .setInputData(new Data.Builder()
+                                .putString(PRIORITY_KEY, FetchGovernor.Priority.PERIODIC.name())
+                                .build())
                         .setConstraints(new Constraints.Builder()
                                 .setRequiredNetworkType(NetworkType.CONNECTED)
                                 .build())
                         .setBackoffCriteria(
-                                BackoffPolicy.LINEAR,
-                                WorkRequest.MIN_BACKOFF_MILLIS,
-                                TimeUnit.MILLISECONDS)
+                                BackoffPolicy.EXPONENTIAL,
+                                RETRY_BACKOFF_MINS,
+                                TimeUnit.MINUTES)
                         .build());
     }
 
@@ -109,17 +83,35 @@ public class Worker extends androidx.work.Worker {
 
     public static void doOnce(@NonNull Context context) {
         Log.d(Worker.class.getName(), "Enqueuing a one-time update");
+        enqueueOnce(context, ExistingWorkPolicy.REPLACE, FetchGovernor.Priority.USER);
+    }
+
+    /// Enqueues a one-time update on behalf of something other than the user (e.g. another app
+    /// asking for the forecast), unless one is already pending or running; it's charged to the
+    /// fetch budget like a periodic refresh.
+    public static void doOnceIfIdle(@NonNull Context context) {
+        Log.d(Worker.class.getName(), "Enqueuing a one-time update, unless one is pending");
+        enqueueOnce(context, ExistingWorkPolicy.KEEP, FetchGovernor.Priority.PERIODIC);
+    }
+
+    private static void enqueueOnce(
+            @NonNull Context context,
+            @NonNull ExistingWorkPolicy policy,
+            @NonNull FetchGovernor.Priority priority) {
         WorkManager.getInstance(context).enqueueUniqueWork(
                 UNIQUE_ONE_SHOT_WORK_NAME,
-                ExistingWorkPolicy.REPLACE,
+                policy,
                 new OneTimeWorkRequest.Builder(Worker.class)
+                        .setInputData(new Data.Builder()
+                                .putString(PRIORITY_KEY, priority.name())
+                                .build())
                         .setConstraints(new Constraints.Builder()
                                 .setRequiredNetworkType(NetworkType.CONNECTED)
                                 .build())
                         .setBackoffCriteria(
-                                BackoffPolicy.LINEAR,
-                                WorkRequest.MIN_BACKOFF_MILLIS,
-                                TimeUnit.MILLISECONDS)
+                                BackoffPolicy.EXPONENTIAL,
+                                RETRY_BACKOFF_MINS,
+                                TimeUnit.MINUTES)
                         .build());
     }
 }
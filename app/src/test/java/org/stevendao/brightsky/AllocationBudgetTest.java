@@ -0,0 +1,197 @@
+package org.stevendao.brightsky;
+
+import android.os.Build;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/// Measures how much the hot parsing, windowing and parceling paths allocate, and how much their
+/// results retain, and fails if either exceeds the budget checked into
+/// allocation_budgets.properties. Allocation is counted per thread by the JVM, so it's exact and
+/// unaffected by other tests; retained size is measured from the heap after full collections,
+/// averaged over many copies.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class AllocationBudgetTest {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 50;
+    private static final int RETAINED_COPIES = 64;
+
+    private static Properties sBudgets;
+    private static StubWeatherApi sApi;
+    private static List<String> sDescriptions;
+
+    @BeforeClass
+    public static void loadFixtures() throws Exception {
+        sBudgets = new Properties();
+        try (InputStream in = AllocationBudgetTest.class.getClassLoader()
+                .getResourceAsStream("allocation_budgets.properties")) {
+            if (in == null) {
+                throw new IOException("Missing allocation_budgets.properties");
+            }
+            sBudgets.load(in);
+        }
+
+        sApi = new StubWeatherApi();
+        sDescriptions = new ArrayList<>();
+        for (String line : StubWeatherApi.readFixture("short_forecasts.txt").split("\n")) {
+            if (!line.trim().isEmpty()) {
+                sDescriptions.add(line.trim());
+            }
+        }
+    }
+
+    @Test
+    public void forecastParsing() {
+        checkAllocated("forecast.parse.allocated", this::parseForecast);
+        checkRetained("forecast.parse.retained", this::parseForecast);
+    }
+
+    @Test
+    public void twentyFourHourWindow() {
+        final Forecast forecast = parseForecast();
+        assertFalse(forecast.getForecastPeriods().isEmpty());
+
+        checkAllocated("forecast.24hour.allocated", forecast::get24HourForecastPeriods);
+        checkRetained("forecast.24hour.retained", forecast::get24HourForecastPeriods);
+    }
+
+    @Test
+    public void parcelRoundTrip() {
+        final Forecast forecast = parseForecast();
+        final Parcel parcel = Parcel.obtain();
+        try {
+            final Forecast copy = roundTrip(parcel, forecast);
+            assertEquals(forecast.getForecastPeriods().size(), copy.getForecastPeriods().size());
+
+            // Reuse one parcel so that only the Forecast's own writing and reading are measured,
+            // not the growth of Robolectric's stand-in for the parcel's native buffer.
+            checkAllocated("forecast.parcel.allocated", () -> roundTrip(parcel, forecast));
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void conditionClassification() {
+        final long perPass = measureAllocated(() -> {
+            WeatherCondition last = null;
+            for (String description : sDescriptions) {
+                last = WeatherCondition.find(description);
+            }
+            return last;
+        });
+        report("condition.find.allocated", perPass / sDescriptions.size());
+    }
+
+    private @NonNull Forecast parseForecast() {
+        GeographicPoint point = new GeographicPoint(sApi.getPointsJson());
+        return new Forecast(point, sApi.getForecastJson(), sApi.getForecastHourlyJson());
+    }
+
+    /// Writes a forecast into the parcel from its start and reads it back, as happens whenever one
+    /// is handed to the service or the widget.
+    private static @NonNull Forecast roundTrip(@NonNull Parcel parcel, @NonNull Forecast forecast) {
+        parcel.setDataPosition(0);
+        forecast.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        return Forecast.CREATOR.createFromParcel(parcel);
+    }
+
+    private static void checkAllocated(@NonNull String budget, @NonNull Supplier<?> operation) {
+        report(budget, measureAllocated(operation));
+    }
+
+    private static void checkRetained(@NonNull String budget, @NonNull Supplier<?> operation) {
+        report(budget, measureRetained(operation));
+    }
+
+    /// Average bytes allocated by the current thread per call, after warming up so that class
+    /// loading and JIT don't count.
+    private static long measureAllocated(@NonNull Supplier<?> operation) {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        assertTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Object sink = null;
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+            sink = operation.get();
+        }
+
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            sink = operation.get();
+        }
+        final long after = threads.getThreadAllocatedBytes(thread);
+
+        assertTrue(sink != null);
+        return (after - before) / ITERATIONS;
+    }
+
+    /// Average growth of the live heap per result, with many results held at once so that the
+    /// noise of a single collection averages out.
+    private static long measureRetained(@NonNull Supplier<?> operation) {
+        operation.get();
+        Object[] results = new Object[RETAINED_COPIES];
+
+        final long before = usedHeapAfterGc();
+        for (int i = 0; i < RETAINED_COPIES; ++i) {
+            results[i] = operation.get();
+        }
+        final long after = usedHeapAfterGc();
+
+        for (Object result : results) {
+            assertTrue(result != null);
+        }
+        return Math.max(0, after - before) / RETAINED_COPIES;
+    }
+
+    private static long usedHeapAfterGc() {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect until the heap stops shrinking; a single System.gc() is only a hint.
+        for (int i = 0; i < 10; ++i) {
+            System.gc();
+            System.runFinalization();
+            final long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    private static void report(@NonNull String budget, long measured) {
+        final String value = sBudgets.getProperty(budget);
+        if (value == null) {
+            throw new AssertionError("No budget for " + budget);
+        }
+
+        final long limit = Long.parseLong(value.trim());
+        assertTrue(String.format(Locale.ROOT,
+                "%s is %,d bytes, over its budget of %,d", budget, measured, limit),
+                measured <= limit);
+    }
+}
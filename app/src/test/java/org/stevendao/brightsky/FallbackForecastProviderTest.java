@@ -0,0 +1,202 @@
+package org.stevendao.brightsky;
+
+import android.location.Location;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/// Exercises the failover rules of {@link FallbackForecastProvider} with local stub providers
+/// that answer after a set delay, with a set forecast, or by throwing.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class FallbackForecastProviderTest {
+    private static final long LATENCY_TARGET_MILLIS = 100;
+    private static final long SLOW_MILLIS = 1000;
+
+    private Forecast mPrimaryForecast;
+    private Forecast mSecondaryForecast;
+    private Location mLocation;
+
+    @Before
+    public void setUp() throws Exception {
+        StubWeatherApi api = new StubWeatherApi();
+        GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        mPrimaryForecast =
+                new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson());
+        mSecondaryForecast = mPrimaryForecast.withDescription("Cached");
+
+        mLocation = new Location("");
+        mLocation.setLatitude(40.7794);
+        mLocation.setLongitude(-73.955);
+    }
+
+    @Test
+    public void fastPrimaryWins() {
+        StubProvider primary = new StubProvider("primary", 0, mPrimaryForecast, false);
+        StubProvider secondary = new StubProvider("secondary", 0, mSecondaryForecast, false);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        assertSame(mPrimaryForecast, provider.fetch(mLocation, query(null)));
+        assertEquals(0, secondary.getCalls());
+    }
+
+    @Test
+    public void failingPrimaryFailsOver() {
+        StubProvider primary = new StubProvider("primary", 0, null, true);
+        StubProvider secondary = new StubProvider("secondary", 0, mSecondaryForecast, false);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        assertSame(mSecondaryForecast, provider.fetch(mLocation, query(null)));
+        assertTrue(provider.getHealthSummaries().get("primary").contains("ok=0/1"));
+        assertTrue(provider.getHealthSummaries().get("secondary").contains("ok=1/1"));
+    }
+
+    @Test
+    public void emptyPrimaryFailsOver() {
+        StubProvider primary = new StubProvider("primary", 0, null, false);
+        StubProvider secondary = new StubProvider("secondary", 0, mSecondaryForecast, false);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        assertSame(mSecondaryForecast, provider.fetch(mLocation, query(null)));
+    }
+
+    @Test
+    public void slowPrimaryFailsOverAndArrivesLate() throws Exception {
+        StubProvider primary = new StubProvider("primary", SLOW_MILLIS, mPrimaryForecast, false);
+        StubProvider secondary = new StubProvider("secondary", 0, mSecondaryForecast, false);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        CompletableFuture<Forecast> late = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        assertSame(mSecondaryForecast, provider.fetch(mLocation, query(late::complete)));
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis < SLOW_MILLIS);
+        assertFalse(late.isDone());
+
+        assertSame(mPrimaryForecast, late.get(5, TimeUnit.SECONDS));
+        assertTrue(provider.getHealthSummaries().get("primary").contains("1 over"));
+    }
+
+    @Test
+    public void slowPrimaryIsAwaitedWithoutSecondary() {
+        StubProvider primary = new StubProvider("primary", SLOW_MILLIS, mPrimaryForecast, false);
+        StubProvider secondary = new StubProvider("secondary", 0, null, false);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        AtomicInteger lateCalls = new AtomicInteger();
+        assertSame(mPrimaryForecast,
+                provider.fetch(mLocation, query(forecast -> lateCalls.incrementAndGet())));
+        assertEquals(0, lateCalls.get());
+    }
+
+    @Test
+    public void slowPrimaryIsAwaitedAfterPostingHourly() {
+        StubProvider primary = new StubProvider("primary", SLOW_MILLIS, mPrimaryForecast, false);
+        primary.setPostsHourly(true);
+        StubProvider secondary = new StubProvider("secondary", 0, mSecondaryForecast, false);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        AtomicInteger hourlyCalls = new AtomicInteger();
+        ForecastProvider.Query query =
+                query(null).withHourlyListener(forecast -> hourlyCalls.incrementAndGet());
+        assertSame(mPrimaryForecast, provider.fetch(mLocation, query));
+        assertEquals(1, hourlyCalls.get());
+        assertEquals(0, secondary.getCalls());
+        assertTrue(provider.getHealthSummaries().get("primary").contains("0 over"));
+    }
+
+    @Test
+    public void bothFailing() {
+        StubProvider primary = new StubProvider("primary", 0, null, true);
+        StubProvider secondary = new StubProvider("secondary", 0, null, true);
+        FallbackForecastProvider provider =
+                new FallbackForecastProvider(primary, secondary, LATENCY_TARGET_MILLIS);
+
+        assertNull(provider.fetch(mLocation, query(null)));
+        assertEquals(1, secondary.getCalls());
+    }
+
+    private static @NonNull ForecastProvider.Query query(
+            @Nullable Forecast.HourlyListener lateListener) {
+        return new ForecastProvider.Query(false, false, false, null, lateListener, null);
+    }
+
+    private static final class StubProvider implements ForecastProvider {
+        private final @NonNull String mName;
+        private final long mDelayMillis;
+        private final @Nullable Forecast mForecast;
+        private final boolean mThrows;
+        private final AtomicInteger mCalls = new AtomicInteger();
+        private boolean mPostsHourly = false;
+
+        private StubProvider(
+                @NonNull String name,
+                long delayMillis,
+                @Nullable Forecast forecast,
+                boolean throwsError) {
+            mName = name;
+            mDelayMillis = delayMillis;
+            mForecast = forecast;
+            mThrows = throwsError;
+        }
+
+        @Override
+        public @NonNull String getName() {
+            return mName;
+        }
+
+        @Override
+        public @Nullable Forecast fetch(@NonNull Location location, @NonNull Query query) {
+            mCalls.incrementAndGet();
+            final Forecast.HourlyListener hourlyListener = query.getHourlyListener();
+            if (mPostsHourly && mForecast != null && hourlyListener != null) {
+                hourlyListener.onHourlyForecast(mForecast);
+            }
+            if (mDelayMillis > 0) {
+                try {
+                    Thread.sleep(mDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (mThrows) {
+                throw new IllegalStateException(mName + " is down");
+            }
+            return mForecast;
+        }
+
+        /// Hands the forecast to the hourly listener before the delay, like a fetch whose daily
+        /// document is the slow one.
+        private void setPostsHourly(boolean postsHourly) {
+            mPostsHourly = postsHourly;
+        }
+
+        private int getCalls() {
+            return mCalls.get();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.stevendao.brightsky;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/// Round-trips periods through {@link ForecastCodec}, both the regular hourly ones it's tuned for
+/// and irregular ones, and checks that truncated or malformed input is rejected rather than
+/// misread.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class ForecastCodecTest {
+    private static final ZoneOffset EDT = ZoneOffset.ofHours(-4);
+    private static final ZoneOffset EST = ZoneOffset.ofHours(-5);
+
+    @Test
+    public void roundTripsFixtures() throws Exception {
+        StubWeatherApi api = new StubWeatherApi();
+        GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        List<ForecastPeriod> periods =
+                new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson())
+                        .getForecastPeriods();
+        assertFalse(periods.isEmpty());
+
+        final byte[] encoded = encode(periods);
+        assertPeriodsEqual(periods, ForecastCodec.readPeriods(ByteBuffer.wrap(encoded)));
+
+        // Hourly periods should take about 4 bytes each.
+        assertTrue("Encoded " + encoded.length + " bytes", encoded.length < periods.size() * 6);
+    }
+
+    @Test
+    public void roundTripsIrregularPeriods() {
+        final OffsetDateTime start = OffsetDateTime.of(2020, 11, 1, 0, 0, 0, 0, EDT);
+        List<ForecastPeriod> periods = Arrays.asList(
+                period(WeatherCondition.CLEAR, start, 60, Optional.of(-12), false),
+                // A gap of two hours, then a 90-minute period.
+                period(WeatherCondition.RAIN, start.plusHours(3), 90, Optional.of(45), true),
+                // No temperature.
+                period(WeatherCondition.FOG, start.plusHours(5), 60, Optional.empty(), true),
+                // The fall-back DST shift: same instant cadence, new offset.
+                period(WeatherCondition.SNOW,
+                        start.plusHours(6).withOffsetSameInstant(EST),
+                        60, Optional.of(120), false),
+                // Out of order, and far from the previous temperature.
+                period(WeatherCondition.UNKNOWN, start.minusDays(400), 1, Optional.of(-80), false));
+
+        assertPeriodsEqual(periods, ForecastCodec.readPeriods(ByteBuffer.wrap(encode(periods))));
+    }
+
+    @Test
+    public void roundTripsEmpty() {
+        final byte[] encoded = encode(new ArrayList<>());
+        assertArrayEquals(new byte[] {0}, encoded);
+        assertEquals(0, ForecastCodec.readPeriods(ByteBuffer.wrap(encoded)).size());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws Exception {
+        StubWeatherApi api = new StubWeatherApi();
+        GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        final byte[] encoded = encode(
+                new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson())
+                        .getForecastPeriods());
+
+        for (int length = 0; length < encoded.length; ++length) {
+            try {
+                ForecastCodec.readPeriods(ByteBuffer.wrap(encoded, 0, length));
+                fail("Read " + length + " of " + encoded.length + " bytes");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsBadCondition() {
+        final OffsetDateTime start = OffsetDateTime.of(2020, 6, 1, 0, 0, 0, 0, EDT);
+        final byte[] encoded = encode(Arrays.asList(
+                period(WeatherCondition.CLEAR, start, 60, Optional.empty(), false)));
+
+        // count, start, duration, offset, then the packed byte with the condition in its low bits.
+        encoded[encoded.length - 1] |= 0x0f;
+        try {
+            ForecastCodec.readPeriods(ByteBuffer.wrap(encoded));
+            fail("Read condition 15");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsImplausibleCount() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ForecastCodec.writeVarint(out, 1000);
+        out.write(0);
+        try {
+            ForecastCodec.readPeriods(ByteBuffer.wrap(out.toByteArray()));
+            fail("Read 1000 periods from 3 bytes");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void varintBoundaries() {
+        final long[] values = {
+                0, 1, 0x7f, 0x80, 0x3fff, 0x4000, 0x1fffff, 0x200000,
+                Integer.MAX_VALUE, 0xffffffffL, 0x100000000L,
+                Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        final int[] lengths = {1, 1, 1, 2, 2, 3, 3, 4, 5, 5, 5, 9, 10, 10};
+
+        for (int i = 0; i < values.length; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ForecastCodec.writeVarint(out, values[i]);
+            final byte[] encoded = out.toByteArray();
+            assertEquals("Length of " + values[i], lengths[i], encoded.length);
+
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            assertEquals(values[i], ForecastCodec.readVarint(in));
+            assertFalse(in.hasRemaining());
+        }
+    }
+
+    @Test
+    public void rejectsOverlongVarint() {
+        byte[] encoded = new byte[11];
+        Arrays.fill(encoded, (byte) 0x80);
+        try {
+            ForecastCodec.readVarint(ByteBuffer.wrap(encoded));
+            fail("Read an 11-byte varint");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void zigzagBoundaries() {
+        assertEquals(0, ForecastCodec.zigzag(0));
+        assertEquals(1, ForecastCodec.zigzag(-1));
+        assertEquals(2, ForecastCodec.zigzag(1));
+        assertEquals(3, ForecastCodec.zigzag(-2));
+        assertEquals(-2, ForecastCodec.zigzag(Long.MAX_VALUE));
+        assertEquals(-1, ForecastCodec.zigzag(Long.MIN_VALUE));
+
+        for (long value : new long[] {
+                0, 1, -1, 63, -64, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(value, ForecastCodec.unzigzag(ForecastCodec.zigzag(value)));
+        }
+    }
+
+    private static @NonNull ForecastPeriod period(
+            @NonNull WeatherCondition condition,
+            @NonNull OffsetDateTime start,
+            int minutes,
+            @NonNull Optional<Integer> temperature,
+            boolean daytime) {
+        return new ForecastPeriod(
+                condition, start, start.plusMinutes(minutes), temperature, daytime);
+    }
+
+    private static @NonNull byte[] encode(@NonNull List<ForecastPeriod> periods) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ForecastCodec.writePeriods(out, periods);
+        return out.toByteArray();
+    }
+
+    static void assertPeriodsEqual(
+            @NonNull List<ForecastPeriod> expected,
+            @NonNull List<ForecastPeriod> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            final String message = "Period " + i;
+            assertEquals(message, expected.get(i).getCondition(), actual.get(i).getCondition());
+            assertEquals(message, expected.get(i).getStartTime(), actual.get(i).getStartTime());
+            assertEquals(message, expected.get(i).getEndTime(), actual.get(i).getEndTime());
+            assertEquals(message,
+                    expected.get(i).getTemperature(), actual.get(i).getTemperature());
+            assertEquals(message, expected.get(i).isDaytime(), actual.get(i).isDaytime());
+        }
+    }
+}
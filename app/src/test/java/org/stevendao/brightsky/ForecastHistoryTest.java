@@ -0,0 +1,132 @@
+package org.stevendao.brightsky;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/// Appends forecasts to a {@link ForecastHistory} in a temporary directory, then damages its
+/// segment file the way a killed process or a bad sector would and checks what a new instance
+/// (as in the next process) recovers.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class ForecastHistoryTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private Forecast mForecast;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new File(mFolder.getRoot(), "history");
+        StubWeatherApi api = new StubWeatherApi();
+        GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        mForecast = new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson());
+    }
+
+    @Test
+    public void appendsAndScans() {
+        ForecastHistory history = new ForecastHistory(mDirectory);
+        history.append(mForecast);
+
+        ForecastCodecTest.assertPeriodsEqual(
+                mForecast.getForecastPeriods(), scanAll(history));
+        ForecastCodecTest.assertPeriodsEqual(
+                mForecast.getForecastPeriods(), scanAll(new ForecastHistory(mDirectory)));
+    }
+
+    @Test
+    public void skipsUnchangedPeriods() throws IOException {
+        ForecastHistory history = new ForecastHistory(mDirectory);
+        history.append(mForecast);
+        final long length = getSegment().length();
+
+        history.append(mForecast);
+        assertEquals(length, getSegment().length());
+
+        // Likewise after a restart, once the signatures are rebuilt from the log.
+        new ForecastHistory(mDirectory).append(mForecast);
+        assertEquals(length, getSegment().length());
+    }
+
+    @Test
+    public void truncatesTornRecord() throws IOException {
+        new ForecastHistory(mDirectory).append(mForecast);
+        final File segment = getSegment();
+        final byte[] record = Files.readAllBytes(segment.toPath());
+
+        // Half of a second record, as if the process died while writing it.
+        Files.write(segment.toPath(), concat(record, Arrays.copyOf(record, record.length / 2)));
+
+        ForecastHistory history = new ForecastHistory(mDirectory);
+        ForecastCodecTest.assertPeriodsEqual(mForecast.getForecastPeriods(), scanAll(history));
+        assertEquals(record.length, segment.length());
+    }
+
+    @Test
+    public void dropsRecordWithBadChecksum() throws IOException {
+        new ForecastHistory(mDirectory).append(mForecast);
+        final File segment = getSegment();
+
+        // Flip a bit in the last byte of the body, which the CRC covers.
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length() - 1);
+            final int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0x01);
+        }
+
+        ForecastHistory history = new ForecastHistory(mDirectory);
+        assertEquals(0, scanAll(history).size());
+        assertEquals(0, segment.length());
+
+        // The log is still usable afterwards.
+        history.append(mForecast);
+        ForecastCodecTest.assertPeriodsEqual(
+                mForecast.getForecastPeriods(), scanAll(new ForecastHistory(mDirectory)));
+    }
+
+    private @NonNull List<ForecastPeriod> scanAll(@NonNull ForecastHistory history) {
+        List<ForecastPeriod> periods = new ArrayList<>();
+        history.scan(mForecast.getGeographicPoint(), Long.MIN_VALUE / 2, Long.MAX_VALUE / 2,
+                (fetchTimeMillis, period) -> {
+                    assertEquals(mForecast.getFetchTimeMillis(), fetchTimeMillis);
+                    periods.add(period);
+                });
+        return periods;
+    }
+
+    private @NonNull File getSegment() {
+        final File[] files = mDirectory.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".seg"));
+        return files[0];
+    }
+
+    private static @NonNull byte[] concat(@NonNull byte[] a, @NonNull byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
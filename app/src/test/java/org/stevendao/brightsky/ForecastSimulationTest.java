@@ -0,0 +1,201 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/// Replays days of periodic refreshes and notification updates against the fixture forecasts on a
+/// {@link SimulatedClock}, checking the 24-hour window at every tick and bounding what resampling
+/// and rendering cost at hour rollovers compared to the ticks in between. The replays start just
+/// before the fall-back and spring-forward DST shifts, where the window mixes two offsets.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class ForecastSimulationTest {
+    private static final ZoneId ZONE = ZoneId.of("America/New_York");
+    private static final Duration TICK = Duration.ofMinutes(5);
+    private static final Duration REFRESH_INTERVAL =
+            Duration.ofMillis(RefreshPolicy.Mode.FULL.getIntervalMillis());
+
+    /// Generous ceilings, so that only a real regression (not a slow machine) fails the replay.
+    private static final long MAX_WALL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long MAX_STEP_MICROS = TimeUnit.MILLISECONDS.toMicros(100);
+
+    @After
+    public void tearDown() {
+        Utils.setClock(null);
+    }
+
+    @Test
+    public void fallBack() throws Exception {
+        final Duration length = Duration.ofDays(3);
+        Report report = replay(ZonedDateTime.of(2020, 10, 31, 12, 0, 0, 0, ZONE), length);
+        report.check(length);
+
+        assertTrue("No window crossed the DST shift", report.mMixedOffsetWindows > 0);
+        assertEquals(report.mRollovers + 1, report.mRenders);
+    }
+
+    @Test
+    public void springForward() throws Exception {
+        final Duration length = Duration.ofDays(3);
+        Report report = replay(ZonedDateTime.of(2021, 3, 13, 12, 0, 0, 0, ZONE), length);
+        report.check(length);
+
+        assertTrue("No window crossed the DST shift", report.mMixedOffsetWindows > 0);
+        assertEquals(report.mRollovers + 1, report.mRenders);
+    }
+
+    /// Steps the clock by one tick at a time, refreshing whenever the refresh interval has passed
+    /// and re-rendering the timeline only when the notification's images would change.
+    private @NonNull Report replay(@NonNull ZonedDateTime start, @NonNull Duration length)
+            throws Exception {
+        final Context context = ApplicationProvider.getApplicationContext();
+        final SimulatedClock clock = new SimulatedClock(start.toInstant(), ZONE);
+        Utils.setClock(clock);
+
+        final StubWeatherApi api = new StubWeatherApi(clock);
+        final GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        final Instant end = start.toInstant().plus(length);
+        final Report report = new Report();
+        final long wallStart = System.nanoTime();
+
+        Forecast forecast = null;
+        Instant nextRefresh = clock.instant();
+        NotificationViewModel posted = null;
+        long lastHour = -1;
+        while (clock.instant().isBefore(end)) {
+            if (!clock.instant().isBefore(nextRefresh)) {
+                forecast = new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson());
+                nextRefresh = nextRefresh.plus(REFRESH_INTERVAL);
+                report.mRefreshes++;
+            }
+
+            final long hour = TimeUnit.MILLISECONDS.toHours(clock.millis());
+            final boolean rollover = lastHour != -1 && hour != lastHour;
+            lastHour = hour;
+            if (rollover) {
+                report.mRollovers++;
+            }
+
+            long t0 = System.nanoTime();
+            final List<ForecastPeriod> twentyFour = forecast.get24HourForecastPeriods();
+            final long resampleNanos = System.nanoTime() - t0;
+            checkWindow(clock.instant(), twentyFour, report);
+
+            final NotificationViewModel model =
+                    new NotificationViewModel(forecast, twentyFour, clock.millis());
+            long renderNanos = 0;
+            if (!model.hasSameImages(posted)) {
+                t0 = System.nanoTime();
+                TimelineRenderer.getInstance().render(context, point, twentyFour,
+                        model.getTimelineFingerprint(), 1600, 160, 40);
+                renderNanos = System.nanoTime() - t0;
+                report.mRenders++;
+            }
+            posted = model;
+
+            report.add(rollover, resampleNanos, renderNanos);
+            clock.advance(TICK);
+        }
+
+        report.mWallNanos = System.nanoTime() - wallStart;
+        return report;
+    }
+
+    /// The window starts at the current hour, has no gaps or overlaps, and labels every hour with
+    /// the offset that's in effect then.
+    private static void checkWindow(
+            @NonNull Instant now,
+            @NonNull List<ForecastPeriod> twentyFour,
+            @NonNull Report report) {
+        assertEquals(24, twentyFour.size());
+        assertEquals(now.getEpochSecond() / 3600,
+                twentyFour.get(0).getStartTime().toEpochSecond() / 3600);
+
+        OffsetDateTime previousEnd = null;
+        for (ForecastPeriod period : twentyFour) {
+            final OffsetDateTime startTime = period.getStartTime();
+            if (previousEnd != null) {
+                assertTrue("Gap or overlap at " + startTime, startTime.isEqual(previousEnd));
+            }
+            assertEquals("Wrong offset at " + startTime,
+                    ZONE.getRules().getOffset(startTime.toInstant()), startTime.getOffset());
+            previousEnd = period.getEndTime();
+        }
+
+        if (!twentyFour.get(0).getStartTime().getOffset()
+                .equals(twentyFour.get(23).getStartTime().getOffset())) {
+            report.mMixedOffsetWindows++;
+        }
+    }
+
+    private static final class Report {
+        private long mTicks = 0;
+        private long mRefreshes = 0;
+        private long mRollovers = 0;
+        private long mRenders = 0;
+        private long mMixedOffsetWindows = 0;
+        private long mWallNanos = 0;
+
+        private long mRolloverResampleNanos = 0;
+        private long mSteadyResampleNanos = 0;
+        private long mMaxResampleNanos = 0;
+        private long mRolloverRenderNanos = 0;
+
+        private void add(boolean rollover, long resampleNanos, long renderNanos) {
+            mTicks++;
+            mMaxResampleNanos = Math.max(mMaxResampleNanos, resampleNanos);
+            if (rollover) {
+                mRolloverResampleNanos += resampleNanos;
+                mRolloverRenderNanos += renderNanos;
+            }
+            else {
+                mSteadyResampleNanos += resampleNanos;
+            }
+        }
+
+        /// Every tick, refresh and rollover happened, and the replay ran in seconds with no
+        /// resample or render anywhere near a frame's worth of time.
+        private void check(@NonNull Duration length) {
+            assertEquals(length.toMillis() / TICK.toMillis(), mTicks);
+            assertEquals(length.toMillis() / REFRESH_INTERVAL.toMillis(), mRefreshes);
+            assertEquals(length.toHours() - 1, mRollovers);
+
+            final long steadyTicks = mTicks - mRollovers;
+            assertTrue("Replay took " + TimeUnit.NANOSECONDS.toMillis(mWallNanos) + "ms",
+                    mWallNanos < MAX_WALL_NANOS);
+            assertTrue("Rollover resample took " + micros(mRolloverResampleNanos, mRollovers)
+                    + "us", micros(mRolloverResampleNanos, mRollovers) < MAX_STEP_MICROS);
+            assertTrue("Steady resample took " + micros(mSteadyResampleNanos, steadyTicks) + "us",
+                    micros(mSteadyResampleNanos, steadyTicks) < MAX_STEP_MICROS);
+            assertTrue("Slowest resample took "
+                            + TimeUnit.NANOSECONDS.toMicros(mMaxResampleNanos) + "us",
+                    TimeUnit.NANOSECONDS.toMicros(mMaxResampleNanos) < MAX_STEP_MICROS);
+            assertTrue("Rollover render took " + micros(mRolloverRenderNanos, mRollovers) + "us",
+                    micros(mRolloverRenderNanos, mRollovers) < MAX_STEP_MICROS);
+        }
+
+        private static long micros(long totalNanos, long count) {
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / count);
+        }
+    }
+}
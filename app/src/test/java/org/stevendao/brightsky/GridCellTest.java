@@ -0,0 +1,93 @@
+package org.stevendao.brightsky;
+
+import android.location.Location;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/// Checks {@link GridCell}'s containment test and its distance to the cell's edge against
+/// {@link Location#distanceBetween}.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class GridCellTest {
+    /// A 0.02-degree square: latitudes 40.00 to 40.02, longitudes -74.02 to -74.00.
+    static final String SQUARE = "{\"type\": \"Polygon\", \"coordinates\": [["
+            + "[-74.02, 40.00], [-74.00, 40.00], [-74.00, 40.02], [-74.02, 40.02], "
+            + "[-74.02, 40.00]]]}";
+
+    static @NonNull GridCell square() throws JSONException {
+        GridCell cell = GridCell.fromGeometry(new JSONObject(SQUARE));
+        assertNotNull(cell);
+        return cell;
+    }
+
+    @Test
+    public void containsInsideButNotOutside() throws JSONException {
+        GridCell cell = square();
+        assertTrue(cell.contains(40.01, -74.01));
+        assertTrue(cell.contains(40.019, -74.001));
+        assertFalse(cell.contains(40.01, -73.99));
+        assertFalse(cell.contains(40.03, -74.01));
+    }
+
+    @Test
+    public void parsesPolygonInsideGeometryCollection() throws JSONException {
+        GridCell cell = GridCell.fromGeometry(new JSONObject(
+                "{\"type\": \"GeometryCollection\", \"geometries\": [{\"type\": \"Point\", "
+                        + "\"coordinates\": [-74.01, 40.01]}, " + SQUARE + "]}"));
+        assertNotNull(cell);
+        assertTrue(cell.contains(40.01, -74.01));
+    }
+
+    @Test
+    public void distanceFromCenterIsToNearestSide() throws JSONException {
+        // A degree of longitude is shorter than one of latitude, so the east and west sides are
+        // closer than the north and south ones.
+        assertDistance(distance(40.01, -74.01, 40.01, -74.00),
+                square().distanceToEdgeMeters(40.01, -74.01));
+    }
+
+    @Test
+    public void distanceFromInsideNearAnEdge() throws JSONException {
+        assertDistance(distance(40.01, -74.0012, 40.01, -74.00),
+                square().distanceToEdgeMeters(40.01, -74.0012));
+        assertDistance(distance(40.0195, -74.01, 40.02, -74.01),
+                square().distanceToEdgeMeters(40.0195, -74.01));
+    }
+
+    @Test
+    public void distanceFromOutsideIsPositive() throws JSONException {
+        assertDistance(distance(40.01, -73.99, 40.01, -74.00),
+                square().distanceToEdgeMeters(40.01, -73.99));
+    }
+
+    @Test
+    public void distanceFromBeyondACornerIsToTheCorner() throws JSONException {
+        assertDistance(distance(40.03, -73.99, 40.02, -74.00),
+                square().distanceToEdgeMeters(40.03, -73.99));
+    }
+
+    private static double distance(
+            double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        float[] results = new float[1];
+        Location.distanceBetween(fromLatitude, fromLongitude, toLatitude, toLongitude, results);
+        return results[0];
+    }
+
+    /// The planar approximation should be within half a percent at this scale.
+    private static void assertDistance(double expected, double actual) {
+        assertEquals(expected, actual, expected * 0.005);
+    }
+}
@@ -0,0 +1,141 @@
+package org.stevendao.brightsky;
+
+import android.location.Location;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/// Checks how the {@link LocationPipeline} places fixes relative to the displayed cell, and that
+/// fixes straddling its edge are only held back for so long.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class LocationPipelineTest {
+    /// About 100 m inside and outside the square's east edge.
+    private static final double NEAR_EDGE_INSIDE = -74.0012;
+    private static final double NEAR_EDGE_OUTSIDE = -73.9988;
+
+    private LocationPipeline.CellFilter mFilter;
+
+    @Before
+    public void setUp() throws JSONException {
+        mFilter = new LocationPipeline.CellFilter();
+        mFilter.setCell(GridCellTest.square());
+    }
+
+    @Test
+    public void everyFixIsOutsideWithoutACell() {
+        mFilter.setCell(null);
+        assertEquals(LocationPipeline.Placement.OUTSIDE, mFilter.place(fix(-74.01, 10f)));
+    }
+
+    @Test
+    public void accurateFixesArePlacedByTheirCenter() {
+        assertEquals(LocationPipeline.Placement.INSIDE, mFilter.place(fix(-74.01, 10f)));
+        assertEquals(LocationPipeline.Placement.INSIDE, mFilter.place(fix(NEAR_EDGE_INSIDE, 50f)));
+        assertEquals(
+                LocationPipeline.Placement.OUTSIDE, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 50f)));
+        assertEquals(LocationPipeline.Placement.OUTSIDE, mFilter.place(fix(-73.99, 10f)));
+    }
+
+    @Test
+    public void fixWithoutAccuracyIsPlacedByItsCenter() {
+        Location location = fix(NEAR_EDGE_OUTSIDE, 0f);
+        location.removeAccuracy();
+        assertEquals(LocationPipeline.Placement.OUTSIDE, mFilter.place(location));
+    }
+
+    @Test
+    public void straddlingFixesAreHeldBackOnlyTwiceInARow() {
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_INSIDE, 500f)));
+        assertEquals(
+                LocationPipeline.Placement.OUTSIDE, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+
+        // The count starts over after that.
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_INSIDE, 500f)));
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_INSIDE, 500f)));
+        assertEquals(
+                LocationPipeline.Placement.INSIDE, mFilter.place(fix(NEAR_EDGE_INSIDE, 500f)));
+    }
+
+    @Test
+    public void decisiveFixResetsTheCount() {
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+        assertEquals(LocationPipeline.Placement.INSIDE, mFilter.place(fix(-74.01, 10f)));
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+    }
+
+    @Test
+    public void newCellResetsTheCount() throws JSONException {
+        mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f));
+        mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f));
+        assertTrue(mFilter.setCell(null));
+        assertTrue(mFilter.setCell(GridCellTest.square()));
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+    }
+
+    @Test
+    public void repostedCellKeepsTheCount() throws JSONException {
+        mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f));
+        mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f));
+        assertFalse(mFilter.setCell(GridCellTest.square()));
+        assertEquals(
+                LocationPipeline.Placement.OUTSIDE, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+    }
+
+    @Test
+    public void expiringPlacesTheLatestStraddlingFix() {
+        mFilter.place(fix(NEAR_EDGE_INSIDE, 500f));
+        final Location outside = fix(NEAR_EDGE_OUTSIDE, 500f);
+        mFilter.place(outside);
+        assertSame(outside, mFilter.expire());
+
+        // Nothing is pending any more, and the count has started over.
+        assertNull(mFilter.expire());
+        assertEquals(
+                LocationPipeline.Placement.AMBIGUOUS, mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f)));
+    }
+
+    @Test
+    public void expiringAnInsideFixChangesNothing() {
+        mFilter.place(fix(NEAR_EDGE_INSIDE, 500f));
+        assertNull(mFilter.expire());
+    }
+
+    @Test
+    public void decisiveFixClearsThePendingOne() {
+        mFilter.place(fix(NEAR_EDGE_OUTSIDE, 500f));
+        mFilter.place(fix(-74.01, 10f));
+        assertNull(mFilter.expire());
+    }
+
+    private static @NonNull Location fix(double longitude, float accuracyMeters) {
+        Location location = new Location("");
+        location.setLatitude(40.01);
+        location.setLongitude(longitude);
+        location.setAccuracy(accuracyMeters);
+        return location;
+    }
+}
@@ -0,0 +1,140 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/// Checks which stations the {@link ObservationPoller} asks, answering its requests by hand.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class ObservationPollerTest {
+    private Context mContext;
+    private RecordingRequestQueue mQueue;
+    private ObservationPoller mPoller;
+    private @Nullable Observation mObservation;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = ApplicationProvider.getApplicationContext();
+        mQueue = new RecordingRequestQueue();
+        Utils.setRequestQueue(mQueue);
+        FetchGovernor.getInstance(mContext).setBypassed(true);
+
+        StubWeatherApi api = new StubWeatherApi();
+        GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        Forecast forecast =
+                new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson());
+        ForecastCache.getInstance().setLatest(forecast);
+        StationIndex.getInstance(mContext).put(
+                point.getStationsUrl(),
+                StationIndexTest.stations("KNYC", "KLGA", "KJFK"),
+                Utils.getClock().millis());
+
+        mPoller = new ObservationPoller(mContext, observation -> mObservation = observation);
+    }
+
+    @After
+    public void tearDown() {
+        mPoller.stop();
+        Utils.setRequestQueue(null);
+        FetchGovernor.getInstance(mContext).setBypassed(false);
+        ForecastCache.getInstance().clear();
+    }
+
+    @Test
+    public void nearestStationWithTemperatureWins() throws JSONException {
+        mPoller.start();
+        mPoller.poll();
+        assertStation("KNYC");
+        respond(20.0);
+
+        assertEquals(1, mQueue.getAdded().size());
+        assertNotNull(mObservation);
+        assertEquals("KNYC", mObservation.getStationId());
+        assertEquals(Optional.of(68), mObservation.getTemperature());
+    }
+
+    @Test
+    public void fallsBackOnlyForOnePoll() throws JSONException {
+        mPoller.start();
+        mPoller.poll();
+        assertStation("KNYC");
+        respond(null);
+
+        // The nearest station has no temperature this time, so the next one is asked.
+        assertStation("KLGA");
+        respond(15.0);
+        assertNotNull(mObservation);
+        assertEquals("KLGA", mObservation.getStationId());
+
+        // The next poll starts from the nearest station again.
+        final int requests = mQueue.getAdded().size();
+        mPoller.poll();
+        assertEquals(requests + 1, mQueue.getAdded().size());
+        assertStation("KNYC");
+        respond(21.0);
+        assertEquals("KNYC", mObservation.getStationId());
+    }
+
+    @Test
+    public void stopsFallingBackAfterLastStation() throws JSONException {
+        mPoller.start();
+        mPoller.poll();
+        respond(null);
+        respond(null);
+        assertStation("KJFK");
+        final int requests = mQueue.getAdded().size();
+        respond(null);
+
+        assertEquals(requests, mQueue.getAdded().size());
+        assertNull(mObservation);
+    }
+
+    private static void idle() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private void assertStation(@NonNull String stationId) {
+        final String url = mQueue.getLast().getUrl();
+        assertTrue(url, url.contains("/stations/" + stationId + "/"));
+    }
+
+    /// Answers the latest request with a current observation, and runs whatever that posts.
+    private void respond(@Nullable Double celsius) throws JSONException {
+        final ConditionalJsonRequest request = (ConditionalJsonRequest) mQueue.getLast();
+        final String timestamp = OffsetDateTime.now(Utils.getClock()).toString();
+        final byte[] body = ObservationTest.feature(timestamp, celsius)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        Response<ConditionalJsonRequest.Result> response =
+                request.parseNetworkResponse(new NetworkResponse(body));
+        request.deliverResponse(response.result);
+        idle();
+    }
+}
@@ -0,0 +1,66 @@
+package org.stevendao.brightsky;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.OffsetDateTime;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/// Checks how observation features from the stations API are parsed.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class ObservationTest {
+    private static final String TIMESTAMP = "2020-11-01T14:51:00+00:00";
+
+    @Test
+    public void convertsTemperatureToFahrenheit() throws JSONException {
+        Observation observation = Observation.fromFeature("KNYC", feature(TIMESTAMP, 20.0));
+        assertEquals("KNYC", observation.getStationId());
+        assertEquals(OffsetDateTime.parse(TIMESTAMP), observation.getTimestamp());
+        assertEquals(Optional.of(68), observation.getTemperature());
+
+        assertEquals(Optional.of(-40),
+                Observation.fromFeature("KNYC", feature(TIMESTAMP, -40.0)).getTemperature());
+        assertEquals(Optional.of(34),
+                Observation.fromFeature("KNYC", feature(TIMESTAMP, 1.2)).getTemperature());
+    }
+
+    @Test
+    public void unreportedTemperatureIsEmpty() throws JSONException {
+        assertEquals(Optional.empty(),
+                Observation.fromFeature("KNYC", feature(TIMESTAMP, null)).getTemperature());
+
+        JSONObject feature = feature(TIMESTAMP, null);
+        feature.getJSONObject("properties").remove("temperature");
+        assertEquals(Optional.empty(), Observation.fromFeature("KNYC", feature).getTemperature());
+    }
+
+    @Test
+    public void rejectsFeatureWithoutTimestamp() throws JSONException {
+        assertNull(Observation.fromFeature("KNYC", new JSONObject()));
+        assertNull(Observation.fromFeature("KNYC", feature("", 20.0)));
+        assertNull(Observation.fromFeature("KNYC", feature("yesterday", 20.0)));
+    }
+
+    /// An observation feature with a temperature in Celsius, or a null one.
+    static @NonNull JSONObject feature(@NonNull String timestamp, @Nullable Double celsius)
+            throws JSONException {
+        return new JSONObject().put("properties", new JSONObject()
+                .put("timestamp", timestamp)
+                .put("temperature", new JSONObject()
+                        .put("unitCode", "wmoUnit:degC")
+                        .put("value", celsius != null ? celsius : JSONObject.NULL)));
+    }
+}
@@ -0,0 +1,145 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.volley.Request;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/// Replays polling against the real {@link FetchGovernor} on a {@link SimulatedClock}, alongside
+/// periodic refreshes, and checks that the polls share their wakeups and are never refused.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class PollSchedulerTest {
+    private static final ZoneId ZONE = ZoneId.of("America/New_York");
+
+    private Context mContext;
+    private SimulatedClock mClock;
+    private RecordingRequestQueue mQueue;
+    private FetchGovernor mGovernor;
+    private AlertPoller mAlertPoller;
+    private ObservationPoller mObservationPoller;
+    private PollScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = ApplicationProvider.getApplicationContext();
+        mClock = new SimulatedClock(
+                ZonedDateTime.of(2020, 10, 30, 12, 0, 0, 0, ZONE).toInstant(), ZONE);
+        Utils.setClock(mClock);
+        mQueue = new RecordingRequestQueue();
+        Utils.setRequestQueue(mQueue);
+        mGovernor = FetchGovernor.getInstance(mContext);
+        mGovernor.reset();
+
+        StubWeatherApi api = new StubWeatherApi(mClock);
+        GeographicPoint point = new GeographicPoint(api.getPointsJson());
+        ForecastCache.getInstance().setLatest(
+                new Forecast(point, api.getForecastJson(), api.getForecastHourlyJson()));
+        StationIndex.getInstance(mContext).put(
+                point.getStationsUrl(),
+                StationIndexTest.stations("KNYC", "KLGA"),
+                mClock.millis());
+
+        mAlertPoller = new AlertPoller(mContext, alerts -> {});
+        mObservationPoller = new ObservationPoller(mContext, observation -> {});
+        mAlertPoller.start();
+        mObservationPoller.start();
+        mScheduler = new PollScheduler(mContext, mAlertPoller, mObservationPoller);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.stop();
+        mAlertPoller.stop();
+        mObservationPoller.stop();
+        Utils.setRequestQueue(null);
+        Utils.setClock(null);
+        ForecastCache.getInstance().clear();
+    }
+
+    @Test
+    public void hourOfPollsIsNeverRefused() {
+        final long deniedBefore = mGovernor.getDeniedCount();
+        mScheduler.start();
+        shadowOf(Looper.getMainLooper()).idle();
+
+        // The periodic refresh runs out of step with the polls, so that nothing lines up. Polls go
+        // out on the hour and every 15 minutes after.
+        for (int minute = 0; minute < 60; ++minute) {
+            if (minute % 30 == 7) {
+                assertTrue(mGovernor.tryAcquire(FetchGovernor.Priority.PERIODIC, 3));
+            }
+            advance(Duration.ofMinutes(1));
+        }
+
+        assertEquals(0, mGovernor.getDeniedCount() - deniedBefore);
+        assertEquals(5, count("/alerts/"));
+        assertEquals(5, count("/observations/"));
+    }
+
+    @Test
+    public void tickDueSoonSharesRefreshWakeup() {
+        mScheduler.start();
+        shadowOf(Looper.getMainLooper()).idle();
+        advance(Duration.ofMinutes(12));
+        assertEquals(1, count("/alerts/"));
+
+        // The next tick is three minutes off, so it goes out with the refresh instead.
+        assertTrue(mGovernor.tryAcquire(FetchGovernor.Priority.PERIODIC, 3));
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(2, count("/alerts/"));
+        assertEquals(2, count("/observations/"));
+
+        // And the timer restarts from there.
+        advance(Duration.ofMinutes(14));
+        assertEquals(2, count("/alerts/"));
+        advance(Duration.ofMinutes(1));
+        assertEquals(3, count("/alerts/"));
+    }
+
+    @Test
+    public void tickFarOffWaitsForItsTime() {
+        mScheduler.start();
+        shadowOf(Looper.getMainLooper()).idle();
+        advance(Duration.ofMinutes(2));
+
+        assertTrue(mGovernor.tryAcquire(FetchGovernor.Priority.PERIODIC, 3));
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1, count("/alerts/"));
+    }
+
+    /// Moves the simulated clock and the main looper forward together, running whatever is due.
+    private void advance(@NonNull Duration duration) {
+        mClock.advance(duration);
+        shadowOf(Looper.getMainLooper()).idleFor(duration);
+    }
+
+    private int count(@NonNull String path) {
+        int count = 0;
+        for (Request<?> request : mQueue.getAdded()) {
+            if (request.getUrl().contains(path)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,37 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.NoCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/// A request queue that records the requests it's given instead of running them, so that tests
+/// can inspect them and answer them by hand.
+public class RecordingRequestQueue extends RequestQueue {
+    private final List<Request<?>> mAdded = new ArrayList<>();
+
+    public RecordingRequestQueue() {
+        super(new NoCache(), request -> {
+            throw new UnsupportedOperationException();
+        });
+    }
+
+    @Override
+    public <T> Request<T> add(@NonNull Request<T> request) {
+        mAdded.add(request);
+        return request;
+    }
+
+    public @NonNull List<Request<?>> getAdded() {
+        return mAdded;
+    }
+
+    /// The most recently added request.
+    public @NonNull Request<?> getLast() {
+        return mAdded.get(mAdded.size() - 1);
+    }
+}
@@ -0,0 +1,278 @@
+package org.stevendao.brightsky;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.preference.PreferenceManager;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestWorkerBuilder;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.NoCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/// Drives the real Worker -> GeographicPoint -> Forecast -> notification pipeline against the
+/// {@link StubWeatherApi} for a number of refresh cycles and bounds latency, retries, requests,
+/// thread count and heap growth. The default is a quick run for every build; run the load test
+/// proper with -Dloadtest.cycles=2000 or more. Each run's throughput, latency, retries, requests,
+/// threads and heap growth are written to build/reports/loadtest/ and repeated in any failure.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class RefreshLoadTest {
+    private static final int CYCLES = Integer.getInteger("loadtest.cycles", 50);
+    private static final int NETWORK_THREADS = 4;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long MAX_P50_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_P99_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int MAX_THREAD_GROWTH = 2;
+    /// Short-lived threads may come and go during a cycle, but not one per cycle.
+    private static final int MAX_PEAK_THREAD_GROWTH = 8;
+    private static final File REPORT_DIR = new File("build/reports/loadtest");
+    private static final long MAX_HEAP_GROWTH_BYTES = 32 * 1024 * 1024;
+
+    private Context mContext;
+    private StubWeatherApi mApi;
+    private RequestQueue mQueue;
+    private ExecutorService mWorkerExecutor;
+    private ServiceController<AlwaysOnNotificationService> mService;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = ApplicationProvider.getApplicationContext();
+        WorkManagerTestInitHelper.initializeTestWorkManager(mContext);
+
+        PreferenceManager.getDefaultSharedPreferences(mContext)
+                .edit()
+                .putBoolean(mContext.getString(R.string.key_always_on_notification), true)
+                .putBoolean(mContext.getString(R.string.key_use_current_location), true)
+                .commit();
+        Location location = new Location("");
+        location.setLatitude(40.7794);
+        location.setLongitude(-73.955);
+        Utils.setCurrentLocation(mContext, location);
+
+        // Deliver responses on the network threads: Robolectric's main looper is the test thread,
+        // which is blocked on the CompletableFuture from Utils.requestJsonObject for the duration
+        // of each cycle.
+        mApi = new StubWeatherApi();
+        mQueue = new RequestQueue(
+                new NoCache(),
+                new BasicNetwork(mApi),
+                NETWORK_THREADS,
+                new ExecutorDelivery(Runnable::run));
+        mQueue.start();
+        Utils.setRequestQueue(mQueue);
+        FetchGovernor.getInstance(mContext).setBypassed(true);
+
+        mWorkerExecutor = Executors.newSingleThreadExecutor();
+        mService = Robolectric.buildService(AlwaysOnNotificationService.class).create();
+    }
+
+    @After
+    public void tearDown() {
+        mService.destroy();
+        mWorkerExecutor.shutdownNow();
+        mQueue.stop();
+        Utils.setRequestQueue(null);
+        FetchGovernor.getInstance(mContext).setBypassed(false);
+        ForecastCache.getInstance().clear();
+    }
+
+    @Test
+    public void nominalRefreshCycles() throws IOException {
+        Report report = run("nominal", CYCLES);
+        report.check();
+
+        assertEquals(report.summary(), CYCLES, report.mForecasts);
+        assertEquals(report.summary(), 0, report.mWorkerRetries);
+        assertEquals(report.summary(), 0, report.mServerErrors);
+    }
+
+    @Test
+    public void degradedRefreshCycles() throws Exception {
+        mApi.setLatencyMillis(5);
+        mApi.setBytesPerSecond(4 * 1024 * 1024);
+        mApi.setServerErrorRate(0.1);
+        mApi.setPayloadPaddingBytes(64 * 1024);
+
+        final int cycles = Math.max(1, CYCLES / 10);
+        Report report = run("degraded", cycles);
+        report.check();
+
+        // A worker only retries after a 5xx, and no cycle should run out of attempts at this
+        // error rate.
+        assertEquals(report.summary(), cycles, report.mForecasts + report.mFailures);
+        assertTrue(report.summary(), report.mWorkerRetries <= report.mServerErrors);
+        assertTrue(report.summary(), report.mMaxAttempts < MAX_ATTEMPTS);
+    }
+
+    private Report run(String name, int cycles) throws IOException {
+        Report report = new Report();
+        report.mName = name;
+        report.mCycles = cycles;
+        report.mThreadsBefore = Thread.activeCount();
+        report.mHeapBefore = usedHeap();
+        report.mRequestsBefore = mApi.getRequestCount();
+        report.mServerErrorsBefore = mApi.getServerErrorCount();
+
+        long[] latencies = new long[cycles];
+        final long start = System.nanoTime();
+        for (int i = 0; i < cycles; ++i) {
+            // Every cycle should go to the network, not to the forecast fetched by the last one.
+            ForecastCache.getInstance().clear();
+
+            final long cycleStart = System.nanoTime();
+            int attempt = 0;
+            ListenableWorker.Result result;
+            while (true) {
+                Worker worker = TestWorkerBuilder.from(mContext, Worker.class, mWorkerExecutor)
+                        .setRunAttemptCount(attempt)
+                        .build();
+                result = worker.doWork();
+                if (!result.equals(ListenableWorker.Result.retry()) || attempt >= MAX_ATTEMPTS) {
+                    break;
+                }
+                attempt++;
+            }
+            report.mWorkerRetries += attempt;
+            report.mMaxAttempts = Math.max(report.mMaxAttempts, attempt);
+            deliverToService(report);
+            latencies[i] = System.nanoTime() - cycleStart;
+
+            report.mPeakThreads = Math.max(report.mPeakThreads, Thread.activeCount());
+        }
+        report.mElapsedNanos = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        report.mP50Nanos = latencies[(cycles - 1) / 2];
+        report.mP99Nanos = latencies[(int) Math.ceil(0.99 * cycles) - 1];
+        report.mThreadsAfter = Thread.activeCount();
+        report.mHeapAfter = usedHeap();
+        report.mRequests = mApi.getRequestCount() - report.mRequestsBefore;
+        report.mServerErrors = mApi.getServerErrorCount() - report.mServerErrorsBefore;
+        report.write();
+        return report;
+    }
+
+    /// Hands whatever the worker posted to the service, exactly as startForegroundService would,
+    /// and counts the cycle by the last message (failed attempts post before they retry).
+    private void deliverToService(Report report) {
+        Application application = ApplicationProvider.getApplicationContext();
+        int lastMessage = -1;
+        Intent intent;
+        while ((intent = shadowOf(application).getNextStartedService()) != null) {
+            lastMessage = intent.getIntExtra(AlwaysOnNotificationService.STATUS_EXTRAS_KEY, -1);
+            mService.withIntent(intent).startCommand(0, 0);
+        }
+
+        if (lastMessage == AlwaysOnNotificationService.MESSAGE_NEW_FORECAST) {
+            report.mForecasts++;
+        }
+        else if (lastMessage == AlwaysOnNotificationService.MESSAGE_API_FAILURE) {
+            report.mFailures++;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class Report {
+        private String mName;
+        private int mCycles;
+        private long mElapsedNanos;
+        private long mP50Nanos;
+        private long mP99Nanos;
+        private int mForecasts;
+        private int mFailures;
+        private int mWorkerRetries;
+        private int mMaxAttempts;
+        private long mRequestsBefore;
+        private long mRequests;
+        private long mServerErrorsBefore;
+        private long mServerErrors;
+        private int mThreadsBefore;
+        private int mPeakThreads;
+        private int mThreadsAfter;
+        private long mHeapBefore;
+        private long mHeapAfter;
+
+        private @NonNull String summary() {
+            final double seconds = mElapsedNanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "[%s] %d cycles in %.2fs (%.1f/s), p50=%.2fms p99=%.2fms, "
+                            + "%d forecasts, %d failures, %d worker retries, "
+                            + "%d requests (%d 5xx), threads %d -> %d (peak %d), heap %+dKB",
+                    mName,
+                    mCycles,
+                    seconds,
+                    mCycles / seconds,
+                    mP50Nanos / 1e6,
+                    mP99Nanos / 1e6,
+                    mForecasts,
+                    mFailures,
+                    mWorkerRetries,
+                    mRequests,
+                    mServerErrors,
+                    mThreadsBefore,
+                    mThreadsAfter,
+                    mPeakThreads,
+                    (mHeapAfter - mHeapBefore) / 1024);
+        }
+
+        /// Keeps the figures from the latest run of each kind, so a long run can be compared
+        /// against earlier ones.
+        private void write() throws IOException {
+            if (!REPORT_DIR.isDirectory() && !REPORT_DIR.mkdirs()) {
+                throw new IOException("Couldn't create " + REPORT_DIR);
+            }
+            Files.write(new File(REPORT_DIR, mName + ".txt").toPath(),
+                    Collections.singletonList(summary()), StandardCharsets.UTF_8);
+        }
+
+        /// Every forecast needed at least one request, no cycle stalled, no threads leaked, and
+        /// the cycles didn't leak memory.
+        private void check() {
+            final String summary = summary();
+            assertTrue(summary, mRequests >= mForecasts);
+            assertTrue(summary, mP50Nanos < MAX_P50_NANOS);
+            assertTrue(summary, mP99Nanos < MAX_P99_NANOS);
+            assertTrue(summary, mPeakThreads - mThreadsBefore <= MAX_PEAK_THREAD_GROWTH);
+            assertTrue(summary, mThreadsAfter - mThreadsBefore <= MAX_THREAD_GROWTH);
+            assertTrue(summary, mHeapAfter - mHeapBefore < MAX_HEAP_GROWTH_BYTES);
+        }
+    }
+}
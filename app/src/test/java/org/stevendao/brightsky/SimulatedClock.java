@@ -0,0 +1,40 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/// A clock that only moves when it's told to, so that days of refreshes and hour rollovers can be
+/// replayed in moments and land on exactly the same instants every run.
+public final class SimulatedClock extends Clock {
+    private final @NonNull ZoneId mZone;
+    private volatile @NonNull Instant mInstant;
+
+    public SimulatedClock(@NonNull Instant instant, @NonNull ZoneId zone) {
+        mInstant = instant;
+        mZone = zone;
+    }
+
+    public void advance(@NonNull Duration duration) {
+        mInstant = mInstant.plus(duration);
+    }
+
+    @Override
+    public @NonNull ZoneId getZone() {
+        return mZone;
+    }
+
+    /// The new clock starts at the same instant but doesn't follow this one.
+    @Override
+    public @NonNull Clock withZone(@NonNull ZoneId zone) {
+        return new SimulatedClock(mInstant, zone);
+    }
+
+    @Override
+    public @NonNull Instant instant() {
+        return mInstant;
+    }
+}
@@ -0,0 +1,111 @@
+package org.stevendao.brightsky;
+
+import android.content.Context;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/// Checks how the {@link StationIndex} picks, ages and evicts gridpoints' stations.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class StationIndexTest {
+    private static final String URL_FORMAT =
+            "https://api.weather.gov/gridpoints/OKX/%d,38/stations";
+    private static final long NOW = TimeUnit.DAYS.toMillis(18500);
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @Test
+    public void unindexedGridpointNeedsRefresh() {
+        StationIndex index = new StationIndex(mContext);
+        assertTrue(index.needsRefresh(url(0), NOW));
+        assertEquals(Collections.emptyList(), index.getStations(url(0)));
+    }
+
+    @Test
+    public void keepsNearestStationsInOrder() throws JSONException {
+        StationIndex index = new StationIndex(mContext);
+        index.put(url(0), stations("KNYC", "", "KLGA", "KJFK", "KEWR"), NOW);
+
+        assertFalse(index.needsRefresh(url(0), NOW));
+        assertEquals(Arrays.asList("KNYC", "KLGA", "KJFK"), index.getStations(url(0)));
+    }
+
+    @Test
+    public void entryAgesOutAfterAMonth() throws JSONException {
+        StationIndex index = new StationIndex(mContext);
+        index.put(url(0), stations("KNYC"), NOW);
+
+        assertFalse(index.needsRefresh(url(0), NOW + TimeUnit.DAYS.toMillis(29)));
+        assertFalse(index.needsRefresh(url(0), NOW + TimeUnit.DAYS.toMillis(30)));
+        assertTrue(index.needsRefresh(url(0), NOW + TimeUnit.DAYS.toMillis(30) + 1));
+
+        // Refreshing the entry restarts its age.
+        index.put(url(0), stations("KNYC"), NOW + TimeUnit.DAYS.toMillis(31));
+        assertFalse(index.needsRefresh(url(0), NOW + TimeUnit.DAYS.toMillis(31)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyIndexedGridpoint() throws JSONException {
+        StationIndex index = new StationIndex(mContext);
+        for (int i = 0; i < 16; ++i) {
+            index.put(url(i), stations("K" + i), NOW);
+        }
+        // Re-indexing the first gridpoint makes the second one the least recent.
+        index.put(url(0), stations("K0"), NOW);
+        index.put(url(16), stations("K16"), NOW);
+
+        assertTrue(index.needsRefresh(url(1), NOW));
+        assertEquals(Collections.emptyList(), index.getStations(url(1)));
+        for (int i : new int[] {0, 2, 15, 16}) {
+            assertEquals(Collections.singletonList("K" + i), index.getStations(url(i)));
+        }
+    }
+
+    @Test
+    public void persistsAcrossInstances() throws JSONException {
+        new StationIndex(mContext).put(url(0), stations("KNYC", "KLGA"), NOW);
+
+        StationIndex index = new StationIndex(mContext);
+        assertFalse(index.needsRefresh(url(0), NOW));
+        assertEquals(Arrays.asList("KNYC", "KLGA"), index.getStations(url(0)));
+    }
+
+    private static @NonNull String url(int gridX) {
+        return String.format(Locale.ROOT, URL_FORMAT, gridX);
+    }
+
+    /// A stations FeatureCollection, nearest first, like the API returns.
+    static @NonNull JSONObject stations(@NonNull String... ids) throws JSONException {
+        JSONArray features = new JSONArray();
+        for (String id : ids) {
+            features.put(new JSONObject().put("properties",
+                    new JSONObject().put("stationIdentifier", id)));
+        }
+        return new JSONObject().put("features", features);
+    }
+}
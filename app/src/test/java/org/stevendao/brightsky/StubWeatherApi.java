@@ -0,0 +1,245 @@
+package org.stevendao.brightsky;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// A local stand-in for api.weather.gov that replays the recorded /points, /forecast and
+/// /forecast/hourly fixtures. It plugs in beneath Volley as the HTTP stack, so everything above
+/// the socket (retries, parsing, delivery) runs exactly as it does against the real service.
+public class StubWeatherApi extends BaseHttpStack {
+    private static final List<Header> HEADERS = Collections.singletonList(
+            new Header("Content-Type", "application/geo+json"));
+
+    /// The fixtures are for New York; rebased periods take the offset in effect there on their
+    /// new dates, like api.weather.gov reports across a DST shift.
+    private static final ZoneId FIXTURE_ZONE = ZoneId.of("America/New_York");
+
+    private final JSONObject mPoints;
+    private final JSONObject mForecast;
+    private final JSONObject mForecastHourly;
+    private final Random mRandom = new Random(42);
+
+    private volatile long mLatencyMillis = 0;
+    private volatile long mBytesPerSecond = 0;
+    private volatile double mServerErrorRate = 0.0;
+
+    private byte[] mPointsBody;
+    private byte[] mForecastBody;
+    private byte[] mForecastHourlyBody;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mServerErrorCount = new AtomicLong();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    public StubWeatherApi() throws IOException, JSONException {
+        this(Clock.systemDefaultZone());
+    }
+
+    /// The fixtures were recorded on a fixed date, so their periods are moved forward by whole
+    /// days to start on the clock's date; otherwise every refresh would see a forecast entirely in
+    /// the past.
+    public StubWeatherApi(@NonNull Clock clock) throws IOException, JSONException {
+        mPoints = new JSONObject(readFixture("points.json"));
+        mForecast = new JSONObject(readFixture("forecast.json"));
+        mForecastHourly = new JSONObject(readFixture("forecast_hourly.json"));
+
+        final OffsetDateTime recorded = OffsetDateTime.parse(mForecastHourly
+                .getJSONObject("properties")
+                .getJSONArray("periods")
+                .getJSONObject(0)
+                .getString("startTime"));
+        final long days = ChronoUnit.DAYS.between(recorded.toLocalDate(), LocalDate.now(clock));
+        rebase(mForecast, days);
+        rebase(mForecastHourly, days);
+
+        setPayloadPaddingBytes(0);
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /// Zero means unlimited.
+    public void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /// Fraction of requests, in [0, 1], answered with a 503 instead of the fixture.
+    public void setServerErrorRate(double serverErrorRate) {
+        mServerErrorRate = serverErrorRate;
+    }
+
+    /// Inflates every response by the given number of bytes to simulate larger payloads.
+    public synchronized void setPayloadPaddingBytes(int paddingBytes) throws JSONException {
+        mPointsBody = encode(mPoints, paddingBytes);
+        mForecastBody = encode(mForecast, paddingBytes);
+        mForecastHourlyBody = encode(mForecastHourly, paddingBytes);
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getServerErrorCount() {
+        return mServerErrorCount.get();
+    }
+
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    /// The rebased fixture documents, for tests that parse them without going through Volley.
+    public @NonNull JSONObject getPointsJson() {
+        return mPoints;
+    }
+
+    public @NonNull JSONObject getForecastJson() {
+        return mForecast;
+    }
+
+    public @NonNull JSONObject getForecastHourlyJson() {
+        return mForecastHourly;
+    }
+
+    @Override
+    public HttpResponse executeRequest(
+            Request<?> request,
+            Map<String, String> additionalHeaders) throws IOException {
+        mRequestCount.incrementAndGet();
+        sleep(mLatencyMillis);
+
+        final double rate = mServerErrorRate;
+        if (rate > 0.0) {
+            final boolean fail;
+            synchronized (mRandom) {
+                fail = mRandom.nextDouble() < rate;
+            }
+            if (fail) {
+                mServerErrorCount.incrementAndGet();
+                return new HttpResponse(503, HEADERS);
+            }
+        }
+
+        final byte[] body = route(request.getUrl());
+        if (body == null) {
+            return new HttpResponse(404, HEADERS);
+        }
+
+        mBytesServed.addAndGet(body.length);
+        return new HttpResponse(
+                200, HEADERS, body.length, new ThrottledInputStream(body, mBytesPerSecond));
+    }
+
+    private synchronized @Nullable byte[] route(@NonNull String url) {
+        if (url.contains("/points/")) {
+            return mPointsBody;
+        }
+        else if (url.endsWith("/forecast/hourly")) {
+            return mForecastHourlyBody;
+        }
+        else if (url.endsWith("/forecast")) {
+            return mForecastBody;
+        }
+        return null;
+    }
+
+    private static void rebase(@NonNull JSONObject document, long days) throws JSONException {
+        JSONArray periods = document.getJSONObject("properties").getJSONArray("periods");
+        for (int i = 0; i < periods.length(); ++i) {
+            JSONObject period = periods.getJSONObject(i);
+            for (String key : Arrays.asList("startTime", "endTime")) {
+                period.put(key, OffsetDateTime.parse(period.getString(key))
+                        .plusDays(days)
+                        .atZoneSameInstant(FIXTURE_ZONE)
+                        .toOffsetDateTime()
+                        .toString());
+            }
+        }
+    }
+
+    private static @NonNull byte[] encode(@NonNull JSONObject document, int paddingBytes)
+            throws JSONException {
+        JSONObject copy = new JSONObject(document.toString());
+        if (paddingBytes > 0) {
+            char[] padding = new char[paddingBytes];
+            Arrays.fill(padding, 'x');
+            copy.put("padding", new String(padding));
+        }
+        return copy.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static @NonNull String readFixture(@NonNull String name) throws IOException {
+        try (InputStream in = StubWeatherApi.class.getClassLoader()
+                .getResourceAsStream("fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /// Delivers the body no faster than the configured bandwidth.
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private static final int CHUNK_BYTES = 4096;
+
+        private final long mBytesPerSecond;
+
+        ThrottledInputStream(@NonNull byte[] body, long bytesPerSecond) {
+            super(new ByteArrayInputStream(body));
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, Math.min(len, CHUNK_BYTES));
+            if (read > 0 && mBytesPerSecond > 0) {
+                sleep(read * 1000L / mBytesPerSecond);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.stevendao.brightsky;
+
+import android.os.Build;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.stevendao.brightsky.WeatherCondition.CLEAR;
+import static org.stevendao.brightsky.WeatherCondition.OVERCAST;
+import static org.stevendao.brightsky.WeatherCondition.RAIN;
+import static org.stevendao.brightsky.WeatherCondition.SNOW;
+
+/// Checks which periods {@link TimelineRenderer#findDirtyRange} repaints: every changed period,
+/// plus whole runs on both sides so that moved labels are redrawn.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class TimelineRendererTest {
+    @Test
+    public void changeAtStart() {
+        assertDirty(0, 2,
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, RAIN, OVERCAST},
+                new WeatherCondition[] {SNOW, CLEAR, RAIN, RAIN, RAIN, OVERCAST});
+    }
+
+    @Test
+    public void changeAtEnd() {
+        assertDirty(4, 6,
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, OVERCAST, OVERCAST},
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, OVERCAST, SNOW});
+    }
+
+    @Test
+    public void runGrows() {
+        assertDirty(2, 6,
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, OVERCAST, OVERCAST},
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, RAIN, OVERCAST});
+    }
+
+    @Test
+    public void runShrinks() {
+        assertDirty(2, 6,
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, RAIN, OVERCAST},
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, OVERCAST, OVERCAST});
+    }
+
+    @Test
+    public void changeInSinglePeriod() {
+        assertDirty(2, 5,
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, RAIN, OVERCAST, OVERCAST},
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, SNOW, RAIN, OVERCAST, OVERCAST});
+    }
+
+    @Test
+    public void changeSplittingOnlyRun() {
+        assertDirty(0, 6,
+                new WeatherCondition[] {RAIN, RAIN, RAIN, RAIN, RAIN, RAIN},
+                new WeatherCondition[] {RAIN, RAIN, SNOW, RAIN, RAIN, RAIN});
+    }
+
+    @Test
+    public void noChangeIsEmpty() {
+        assertDirty(0, 0,
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, RAIN, OVERCAST},
+                new WeatherCondition[] {CLEAR, CLEAR, RAIN, RAIN, RAIN, OVERCAST});
+    }
+
+    private static void assertDirty(
+            int from,
+            int to,
+            WeatherCondition[] before,
+            WeatherCondition[] after) {
+        assertArrayEquals(new int[] {from, to}, TimelineRenderer.findDirtyRange(before, after));
+    }
+}
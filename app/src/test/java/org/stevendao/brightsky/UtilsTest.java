@@ -0,0 +1,96 @@
+package org.stevendao.brightsky;
+
+import android.os.Build;
+
+import com.android.volley.Request;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/// Covers the URL normalization and cancellation rules that decide when JSON requests are shared.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.Q)
+public class UtilsTest {
+    private static final String URL = "https://api.weather.gov/gridpoints/OKX/34,38/forecast";
+
+    @Test
+    public void normalizesCase() {
+        assertEquals(URL, Utils.normalizeUrl(
+                "HTTPS://API.Weather.gov/gridpoints/OKX/34,38/forecast"));
+        assertFalse(URL.equals(Utils.normalizeUrl(
+                "https://api.weather.gov/GRIDPOINTS/OKX/34,38/forecast")));
+    }
+
+    @Test
+    public void dropsDefaultPort() {
+        assertEquals(URL, Utils.normalizeUrl(
+                "https://api.weather.gov:443/gridpoints/OKX/34,38/forecast"));
+        assertEquals("http://api.weather.gov/points", Utils.normalizeUrl(
+                "http://api.weather.gov:80/points"));
+        assertEquals("https://api.weather.gov:8443/points", Utils.normalizeUrl(
+                "https://api.weather.gov:8443/points"));
+        assertEquals("http://api.weather.gov:443/points", Utils.normalizeUrl(
+                "http://api.weather.gov:443/points"));
+    }
+
+    @Test
+    public void dropsTrailingSlash() {
+        assertEquals(URL, Utils.normalizeUrl(URL + "/"));
+        assertEquals("https://api.weather.gov/", Utils.normalizeUrl("https://api.weather.gov/"));
+    }
+
+    @Test
+    public void dropsFragment() {
+        assertEquals(URL, Utils.normalizeUrl(URL + "#periods"));
+    }
+
+    @Test
+    public void keepsQuery() {
+        assertEquals(URL + "?units=si", Utils.normalizeUrl(URL + "?units=si"));
+        assertEquals(URL + "?units=si", Utils.normalizeUrl(URL + "/?units=si#periods"));
+        assertFalse(Utils.normalizeUrl(URL + "?units=si").equals(
+                Utils.normalizeUrl(URL + "?units=us")));
+    }
+
+    @Test
+    public void sharesRequestForSameDocument() {
+        RecordingRequestQueue queue = new RecordingRequestQueue();
+        Future<JSONObject> first =
+                Utils.requestJsonObject(queue, URL, Metrics.Stage.FORECAST);
+        Future<JSONObject> second = Utils.requestJsonObject(queue,
+                "HTTPS://API.WEATHER.GOV/gridpoints/OKX/34,38/forecast/", Metrics.Stage.FORECAST);
+        assertEquals(1, queue.getAdded().size());
+
+        first.cancel(true);
+        second.cancel(true);
+    }
+
+    @Test
+    public void cancelsRequestWhenLastCallerCancels() {
+        RecordingRequestQueue queue = new RecordingRequestQueue();
+        Future<JSONObject> first = Utils.requestJsonObject(queue, URL, Metrics.Stage.FORECAST);
+        Future<JSONObject> second = Utils.requestJsonObject(queue, URL, Metrics.Stage.FORECAST);
+        final Request<?> request = queue.getAdded().get(0);
+
+        first.cancel(true);
+        assertFalse(request.isCanceled());
+        assertFalse(second.isDone());
+
+        second.cancel(true);
+        assertTrue(request.isCanceled());
+
+        // The cancelled request is no longer shared; the next caller starts a new one.
+        Future<JSONObject> third = Utils.requestJsonObject(queue, URL, Metrics.Stage.FORECAST);
+        assertEquals(2, queue.getAdded().size());
+        third.cancel(true);
+    }
+}